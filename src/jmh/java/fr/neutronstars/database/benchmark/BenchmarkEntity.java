@@ -0,0 +1,70 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.benchmark;
+
+import fr.neutronstars.database.api.annotation.Column;
+import fr.neutronstars.database.api.annotation.Table;
+
+@Table(name = "bench_entity")
+public class BenchmarkEntity
+{
+    @Column(type = "integer(10)", key = Column.Key.PRIMARY, autoIncrement = true)
+    private int id;
+
+    @Column
+    private String name;
+
+    @Column(type = "integer(10)")
+    private int level;
+
+    @Column(type = "bigint(20)")
+    private long score;
+
+    public int getId()
+    {
+        return this.id;
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public int getLevel()
+    {
+        return this.level;
+    }
+
+    public void setLevel(int level)
+    {
+        this.level = level;
+    }
+
+    public long getScore()
+    {
+        return this.score;
+    }
+
+    public void setScore(long score)
+    {
+        this.score = score;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.benchmark;
+
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.core.AbstractRepository;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+
+public class BenchmarkRepository extends AbstractRepository<BenchmarkEntity>
+{
+    public BenchmarkRepository(Database<Connection, ResultSet> database)
+    {
+        super(database);
+    }
+
+    // exposes the row mapping to the benchmarks
+    public BenchmarkEntity map(ResultSet resultSet) throws Throwable
+    {
+        return this.build(resultSet);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.benchmark;
+
+import fr.neutronstars.database.core.DatabaseImpl;
+import fr.neutronstars.database.core.DatabaseSettings;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+// an in-memory H2 database speaking the MySQL dialect, so the benchmarks need no server
+public class H2Database extends DatabaseImpl
+{
+    public static final int ROWS = 1_000;
+
+    public H2Database(String name, DatabaseSettings settings)
+    {
+        super(null, null, name, "sa", "", "utf-8", settings);
+    }
+
+    @Override
+    protected Connection openConnection() throws SQLException
+    {
+        return DriverManager.getConnection(
+            "jdbc:h2:mem:" + this.database + ";MODE=MySQL;DB_CLOSE_DELAY=-1", this.user, this.password
+        );
+    }
+
+    // the bench_entity table filled with ROWS rows
+    public H2Database populate() throws Exception
+    {
+        this.connect();
+        this.execute("DROP TABLE IF EXISTS bench_entity");
+        this.execute(
+            "CREATE TABLE bench_entity (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255), level INT, score BIGINT)"
+        );
+        StringBuilder insert = new StringBuilder("INSERT INTO bench_entity (name, level, score) VALUES ");
+        for (int i = 0; i < ROWS; i++) {
+            insert.append(i == 0 ? "" : ",").append("('Player ").append(i).append("',").append(i % 100).append(',')
+                .append(i * 31L).append(')');
+        }
+        this.execute(insert.toString());
+        return this;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.benchmark;
+
+import fr.neutronstars.database.core.DatabaseSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// the repository round trips against the in-memory H2 database, the persist path with and without upserts
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PersistenceBenchmark
+{
+    @Param({"false", "true"})
+    private boolean upsert;
+
+    private H2Database database;
+    private BenchmarkRepository repository;
+    private List<BenchmarkEntity> entities;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.database = new H2Database("persistence", DatabaseSettings.create().upsertPersist(this.upsert));
+        this.database.populate();
+        this.repository = new BenchmarkRepository(this.database);
+        this.entities = this.repository.findAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        this.database.disconnect();
+    }
+
+    // an UPDATE of an existing row
+    @Benchmark
+    public BenchmarkEntity persistExisting() throws Exception
+    {
+        BenchmarkEntity entity = this.entities.get(this.next++ % this.entities.size());
+        entity.setScore(entity.getScore() + 1);
+        this.repository.persist(entity);
+        return entity;
+    }
+
+    @Benchmark
+    public int persistAll() throws Exception
+    {
+        for (BenchmarkEntity entity : this.entities) {
+            entity.setLevel(entity.getLevel() + 1);
+        }
+        this.repository.persistAll(this.entities);
+        return this.entities.size();
+    }
+
+    @Benchmark
+    public List<BenchmarkEntity> findAll() throws Exception
+    {
+        return this.repository.findAll();
+    }
+
+    @Benchmark
+    public BenchmarkEntity find() throws Exception
+    {
+        return this.repository.find(1 + this.next++ % H2Database.ROWS).orElse(null);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.benchmark;
+
+import fr.neutronstars.database.api.Query;
+import fr.neutronstars.database.core.QueryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// building a query from scratch, with as many OR'd predicates and ORDER BY columns as clauses
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryBuildBenchmark
+{
+    @Param({"1", "10", "100", "1000"})
+    private int clauses;
+
+    @Benchmark
+    public String select()
+    {
+        Query<String> query = new QueryImpl(null, "bench_entity AS b")
+            .select("b.id", "b.name", "b.level")
+            .join(Query.Join.INNER, "guild", "g", "g.id=b.guild_id")
+            .where("b.level>?");
+        for (int i = 0; i < this.clauses; i++) {
+            query.where("b.name=?", Query.Where.OR);
+        }
+        for (int i = 0; i < this.clauses; i++) {
+            query.orderBy("b.column" + i, Query.Order.ASC);
+        }
+        return query.limit(100).build();
+    }
+
+    @Benchmark
+    public String nested()
+    {
+        Query<String> query = new QueryImpl(null, "bench_entity").select("*").where("id>?");
+        for (int i = 0; i < this.clauses; i++) {
+            Query<String> child = new QueryImpl(null, "score").select("entity_id").where("value>?");
+            query.where(Query.Where.OR, "id", Query.WhereCondition.IN, child);
+        }
+        return query.build();
+    }
+
+    @Benchmark
+    public String insert()
+    {
+        String[] columns = {"name", "level", "score"};
+        String[][] rows = new String[this.clauses][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new String[]{"?", "?", "?"};
+        }
+        return new QueryImpl(null, "bench_entity").insertInto(columns, rows).build();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.benchmark;
+
+import fr.neutronstars.database.core.DatabaseSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AbstractRepository#build(ResultSet) over H2Database.ROWS rows, either from an in-memory mock, which
+ * leaves only the mapping, or from a real H2 result set. Measured with the compiled row mappers and with
+ * the reflective getObject(name) path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RowMappingBenchmark
+{
+    private static final String[] LABELS = {"id", "name", "level", "score"};
+
+    @Param({"mock", "h2"})
+    private String source;
+
+    @Param({"true", "false"})
+    private boolean compiled;
+
+    private H2Database database;
+    private BenchmarkRepository repository;
+    private Object[][] rows;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.database = new H2Database("mapping", DatabaseSettings.create().compiledRowMappers(this.compiled));
+        this.database.populate();
+        this.repository = new BenchmarkRepository(this.database);
+        this.rows = new Object[H2Database.ROWS][];
+        for (int i = 0; i < this.rows.length; i++) {
+            this.rows[i] = new Object[]{i + 1, "Player " + i, i % 100, i * 31L};
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        this.database.disconnect();
+    }
+
+    @Benchmark
+    public void mapAll(Blackhole blackhole) throws Throwable
+    {
+        ResultSet resultSet = this.source.equals("h2")
+            ? this.database.getResults("SELECT * FROM bench_entity")
+            : this.mock();
+        try {
+            while (resultSet.next()) {
+                blackhole.consume(this.repository.map(resultSet));
+            }
+        } finally {
+            this.database.close(resultSet);
+        }
+    }
+
+    // a forward only result set over the rows, answering the calls the mapping makes
+    private ResultSet mock()
+    {
+        ClassLoader loader = RowMappingBenchmark.class.getClassLoader();
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+            loader, new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getColumnCount":
+                        return LABELS.length;
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return LABELS[(int) args[0] - 1];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        );
+        int[] row = {-1};
+        return (ResultSet) Proxy.newProxyInstance(loader, new Class[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++row[0] < this.rows.length;
+                case "getMetaData":
+                    return metaData;
+                case "close":
+                    return null;
+                case "wasNull":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    break;
+            }
+            int column = -1;
+            if (args[0] instanceof String) {
+                for (int i = 0; i < LABELS.length; i++) {
+                    if (LABELS[i].equalsIgnoreCase((String) args[0])) {
+                        column = i;
+                    }
+                }
+            } else {
+                column = (int) args[0] - 1;
+            }
+            return this.rows[row[0]][column];
+        });
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.api;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+// a frozen query, its SQL is built once and it can be shared between threads and run with any parameters
+public interface CompiledQuery
+{
+    String getSql();
+
+    int getParameterCount();
+
+    Set<String> getTables();
+
+    long getCacheTimeToLive();
+
+    <R> R getResult(Object... params) throws Exception;
+
+    <E> Stream<E> stream(ResultMapper<E> mapper, Object... params) throws Exception;
+
+    void execute(Object... params) throws Exception;
+
+    List<Object> executeAndGetKeys(Object... params) throws Exception;
+
+    void executeBatch(List<Object[]> params) throws Exception;
+
+    <R> CompletableFuture<R> getResultAsync(Object... params);
+
+    CompletableFuture<Void> executeAsync(Object... params);
+}
@@ -15,7 +15,11 @@
  */
 package fr.neutronstars.database.api;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public interface Database<T, R> {
     T get();
@@ -36,7 +40,52 @@ public interface Database<T, R> {
 
     R getResults(Query<?> query, Object... params) throws Exception;
 
+    R getResults(String query, Object... params) throws Exception;
+
+    <E> Stream<E> stream(Query<?> query, ResultMapper<E> mapper, Object... params) throws Exception;
+
     void execute(Query<?> query, Object... params) throws Exception;
 
+    List<Object> executeAndGetKeys(Query<?> query, Object... params) throws Exception;
+
+    void executeBatch(Query<?> query, List<Object[]> params) throws Exception;
+
+    R getResults(CompiledQuery query, Object... params) throws Exception;
+
+    <E> Stream<E> stream(CompiledQuery query, ResultMapper<E> mapper, Object... params) throws Exception;
+
+    void execute(CompiledQuery query, Object... params) throws Exception;
+
+    List<Object> executeAndGetKeys(CompiledQuery query, Object... params) throws Exception;
+
+    void executeBatch(CompiledQuery query, List<Object[]> params) throws Exception;
+
     Database<T, R> close(R result) throws Exception;
+
+    <V> CompletableFuture<V> supplyAsync(Callable<V> task);
+
+    // runs the callback in a transaction committed when it returns and rolled back when it throws
+    <V> V inTransaction(Callable<V> callback) throws Exception;
+
+    <V> V inTransaction(Isolation isolation, boolean readOnly, Callable<V> callback) throws Exception;
+
+    // the calling thread keeps a pooled connection until commit() or rollback(), nested calls join the transaction
+    Database<T, R> begin() throws Exception;
+
+    Database<T, R> begin(Isolation isolation, boolean readOnly) throws Exception;
+
+    Database<T, R> commit() throws Exception;
+
+    Database<T, R> rollback() throws Exception;
+
+    boolean isInTransaction();
+
+    enum Isolation
+    {
+        DEFAULT,
+        READ_UNCOMMITTED,
+        READ_COMMITTED,
+        REPEATABLE_READ,
+        SERIALIZABLE
+    }
 }
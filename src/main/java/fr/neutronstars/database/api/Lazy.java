@@ -0,0 +1,84 @@
+package fr.neutronstars.database.api;
+
+/*
+ * The value of a @Column(lazy = true) field, left out of the SELECT of its entity and read on the first get().
+ * The repositories load it together with the same column of every entity read along with it, in one query.
+ */
+public final class Lazy<V>
+{
+    // an already known value, for the entities built by the application
+    public static <V> Lazy<V> of(V value)
+    {
+        Lazy<V> lazy = new Lazy<>(null);
+        lazy.value = value;
+        lazy.loaded = true;
+        return lazy;
+    }
+
+    public static <V> Lazy<V> loading(Loader<V> loader)
+    {
+        return new Lazy<>(loader);
+    }
+
+    private Loader<V> loader;
+    private V value;
+    private boolean modified;
+    // written last, the value is visible to whoever sees it set
+    private volatile boolean loaded;
+
+    private Lazy(Loader<V> loader)
+    {
+        this.loader = loader;
+    }
+
+    public V get()
+    {
+        if (!this.loaded) {
+            synchronized (this) {
+                if (!this.loaded) {
+                    try {
+                        this.value = this.loader.load();
+                    } catch (RuntimeException exception) {
+                        throw exception;
+                    } catch (Exception exception) {
+                        throw new IllegalStateException(exception.getMessage(), exception);
+                    }
+                    this.loader = null;
+                    this.loaded = true;
+                }
+            }
+        }
+        return this.value;
+    }
+
+    public synchronized void set(V value)
+    {
+        this.value = value;
+        this.loader = null;
+        this.modified = true;
+        this.loaded = true;
+    }
+
+    public boolean isLoaded()
+    {
+        return this.loaded;
+    }
+
+    // whether set() was called, the value then differs from the stored one
+    public synchronized boolean isModified()
+    {
+        return this.modified;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.loaded ? String.valueOf(this.value) : "Lazy(not loaded)";
+    }
+
+    @FunctionalInterface
+    public interface Loader<V>
+    {
+        V load() throws Exception;
+    }
+}
@@ -0,0 +1,32 @@
+package fr.neutronstars.database.api;
+
+import java.util.Collections;
+import java.util.List;
+
+public final class Page<E>
+{
+    private final List<E> items;
+    private final String nextCursor;
+
+    public Page(List<E> items, String nextCursor)
+    {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<E> getItems()
+    {
+        return this.items;
+    }
+
+    // token to give back to get the following page, null on the last page
+    public String getNextCursor()
+    {
+        return this.nextCursor;
+    }
+
+    public boolean hasNext()
+    {
+        return this.nextCursor != null;
+    }
+}
@@ -16,9 +16,16 @@
 package fr.neutronstars.database.api;
 
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public interface Query<T>
 {
+    String ANY_TABLE = "*";
+
     Query<T> insertInto(List<String> columns, String... values);
 
     Query<T> insertInto(List<String> columns, List<String>... values);
@@ -98,12 +105,37 @@ public interface Query<T>
 
     Query<T> union(String table, boolean all);
 
+    // opts the SELECT in the result cache, when the database has one
+    Query<T> cache(long timeToLive, TimeUnit unit);
+
+    long getCacheTimeToLive();
+
+    // the tables read or written, "*" when one of them cannot be known
+    Set<String> getTables();
+
     <R> R getResult(Object... params) throws Exception;
 
+    <E> Stream<E> stream(ResultMapper<E> mapper, Object... params) throws Exception;
+
+    <E> Flow.Publisher<E> publish(ResultMapper<E> mapper, Object... params);
+
+    <E> Page<E> page(ResultMapper<E> mapper, String cursor, int size, Object... params) throws Exception;
+
     void execute(Object... params) throws Exception;
 
+    <R> CompletableFuture<R> getResultAsync(Object... params);
+
+    CompletableFuture<Void> executeAsync(Object... params);
+
+    List<Object> executeAndGetKeys(Object... params) throws Exception;
+
+    void executeBatch(List<Object[]> params) throws Exception;
+
     T build();
 
+    // freezes the query as it is now, later changes to this builder do not reach the compiled query
+    CompiledQuery compile();
+
     enum Where
     {
         AND, OR
@@ -3,8 +3,12 @@ package fr.neutronstars.database.api;
 import fr.neutronstars.database.api.annotation.Table;
 
 import java.sql.ResultSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 public interface Repository<T>
 {
@@ -14,6 +18,22 @@ public interface Repository<T>
 
     List<T> findAll() throws Exception;
 
+    Stream<T> stream() throws Exception;
+
+    Flow.Publisher<T> publish() throws Exception;
+
+    Page<T> page(String cursor, int size) throws Exception;
+
+    void persistAll(Collection<T> entities) throws Exception;
+
+    CompletableFuture<Optional<T>> findAsync(Object identifier);
+
+    CompletableFuture<Optional<T>> findAsync(String column, Object identifier);
+
+    CompletableFuture<List<T>> findAllAsync();
+
+    CompletableFuture<Void> persistAllAsync(Collection<T> entities);
+
     Query<ResultSet> createQuery() throws Exception;
 
     Query<ResultSet> createQuery(String alias) throws Exception;
@@ -0,0 +1,9 @@
+package fr.neutronstars.database.api;
+
+import java.sql.ResultSet;
+
+@FunctionalInterface
+public interface ResultMapper<E>
+{
+    E map(ResultSet resultSet) throws Throwable;
+}
@@ -14,6 +14,10 @@ public @interface Column
     boolean nullable() default false;
     boolean autoIncrement() default false;
     String comment() default "";
+    // the rows are spread over the shards of a ShardedDatabase by this column instead of the primary key
+    boolean shardKey() default false;
+    // left out of the SELECT of the entity, the field must be a Lazy and is read on its first get()
+    boolean lazy() default false;
 
     enum Key
     {
@@ -0,0 +1,15 @@
+package fr.neutronstars.database.api.annotation;
+
+import java.lang.annotation.*;
+
+// an index over several columns, in the given order, the single column ones are declared with @Column(key = ...)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Documented
+@Repeatable(Indexes.class)
+public @interface Index
+{
+    String name() default "";
+    String[] columns();
+    Column.Key key() default Column.Key.INDEX;
+}
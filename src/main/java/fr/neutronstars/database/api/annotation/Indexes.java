@@ -0,0 +1,11 @@
+package fr.neutronstars.database.api.annotation;
+
+import java.lang.annotation.*;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Documented
+public @interface Indexes
+{
+    Index[] value();
+}
@@ -1,24 +1,51 @@
 package fr.neutronstars.database.core;
 
+import fr.neutronstars.database.api.CompiledQuery;
 import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.Lazy;
+import fr.neutronstars.database.api.Page;
 import fr.neutronstars.database.api.Query;
 import fr.neutronstars.database.api.Repository;
-import fr.neutronstars.database.api.annotation.Column;
-import fr.neutronstars.database.api.annotation.Table;
+import fr.neutronstars.database.api.ResultMapper;
 import fr.neutronstars.database.api.exception.MissingAnnotationException;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
+import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.stream.Stream;
 
 public abstract class AbstractRepository<T> implements Repository<T>
 {
     private Database<Connection, ResultSet> database;
+    private volatile EntityMetadata<T> metadata;
+    private volatile MapperBinding<T> mapperBinding;
+    private volatile SegmentedCache<Object, Object[]> cache;
+    // the lookups run on every find and persist, built once per column
+    private final Map<String, CompiledQuery> findQueries = new ConcurrentHashMap<>();
+    private volatile CompiledQuery existsQuery;
+    private volatile Boolean customBuild;
+    // the entities read with only some of their columns
+    private final WeakIdentitySet<T> partials = new WeakIdentitySet<>();
 
     protected AbstractRepository(Database<Connection, ResultSet> database)
     {
@@ -28,26 +55,147 @@ public abstract class AbstractRepository<T> implements Repository<T>
     @Override
     public Optional<T> find(Object identifier) throws Exception
     {
-        return this.find("id", identifier);
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.getMetadata().getPrimaryKeys();
+        return this.find(primaryKeys.size() == 1 ? primaryKeys.get(0).getName() : "id", identifier);
+    }
+
+    // keeps the entities found by primary key, persist refreshes them
+    public AbstractRepository<T> enableCache(int maximumSize, long timeToLive, TimeUnit unit)
+    {
+        this.cache = new SegmentedCache<>(maximumSize, timeToLive, unit);
+        return this;
+    }
+
+    public void disableCache()
+    {
+        this.cache = null;
+    }
+
+    // null when the cache is not enabled
+    public CacheStatistics getCacheStatistics()
+    {
+        SegmentedCache<Object, Object[]> cache = this.cache;
+        return cache != null ? cache.getStatistics() : null;
     }
 
     @Override
     public Optional<T> find(String column, Object identifier) throws Exception
     {
-        return Optional.ofNullable(
-            (ResultSet) (this.createQuery()
-                .select("*")
-                .where(column + "=?")
-                .getResult(identifier))
-        ).map(resultSet -> {
+        SegmentedCache<Object, Object[]> cache = this.cache;
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.getMetadata().getPrimaryKeys();
+        // a transaction may read rows it has not committed yet, they must not be shared
+        if (cache == null || primaryKeys.size() != 1 || !primaryKeys.get(0).getName().equalsIgnoreCase(column)
+            || this.database.isInTransaction()) {
+            return this.load(column, identifier);
+        }
+        Object key = cacheKey(primaryKeys.get(0), identifier);
+        if (key == null) {
+            return this.load(column, identifier);
+        }
+        Object[] state = cache.get(key);
+        if (state != null) {
+            return Optional.of(this.restore(state));
+        }
+        // a persist refreshing the entry while the row is read wins over it
+        long version = cache.getVersion(key);
+        long start = System.nanoTime();
+        Optional<T> found = this.load(column, identifier);
+        cache.getStatistics().load(System.nanoTime() - start);
+        if (found.isPresent()) {
+            cache.putIfUnchanged(key, this.cacheState(found.get()), version);
+        }
+        return found;
+    }
+
+    // "5" and 5L find the same row of an integral key and share its entry, null when the identifier is not cached
+    private static Object cacheKey(EntityMetadata.ColumnMetadata primaryKey, Object identifier)
+    {
+        Object key = normalizeKey(identifier);
+        if (key instanceof String && isIntegral(primaryKey.getJavaType())) {
+            try {
+                return Long.parseLong(((String) key).trim());
+            } catch (NumberFormatException exception) {
+                // MySQL would still match the number it starts with
+                return null;
+            }
+        }
+        return key;
+    }
+
+    // the cache keeps the column values, every hit gets its own instance
+    private T restore(Object[] state) throws Exception
+    {
+        try {
+            T instance = this.metadata.newInstance();
+            for (EntityMetadata.ColumnMetadata column : this.metadata.getColumns()) {
+                column.set(instance, state[column.getIndex()]);
+            }
+            if (this.metadata.hasLazyColumns()) {
+                this.attachLazy(null, instance);
+            }
+            return instance;
+        } catch (Exception exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        }
+    }
+
+    void refreshCache(T type)
+    {
+        SegmentedCache<Object, Object[]> cache = this.cache;
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.metadata.getPrimaryKeys();
+        if (cache == null || primaryKeys.size() != 1) {
+            return;
+        }
+        Object[] state = this.cacheState(type);
+        Object key = state[primaryKeys.get(0).getIndex()];
+        if (key == null) {
+            return;
+        }
+        if (this.database.isInTransaction()) {
+            // the write may still be rolled back
+            cache.invalidate(normalizeKey(key));
+        } else {
+            cache.put(normalizeKey(key), state);
+        }
+    }
+
+    // the lazy columns are left out, they would be read for nothing and a hit loads them again
+    private Object[] cacheState(T type)
+    {
+        List<EntityMetadata.ColumnMetadata> columns = this.metadata.getColumns();
+        Object[] state = new Object[columns.size()];
+        try {
+            for (EntityMetadata.ColumnMetadata column : columns) {
+                if (!column.isLazy()) {
+                    state[column.getIndex()] = column.get(type);
+                }
+            }
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        }
+        return state;
+    }
+
+    private Optional<T> load(String column, Object identifier) throws Exception
+    {
+        CompiledQuery query = this.findQueries.get(column);
+        if (query == null) {
+            query = this.createQuery().select(this.getMetadata().getSelectColumns()).where(column + "=?").compile();
+            this.findQueries.put(column, query);
+        }
+        Database<Connection, ResultSet> database = this.getDatabase(column, identifier);
+        return Optional.ofNullable(database.getResults(query, identifier)).map(resultSet -> {
             T t = null;
             try {
                 if (resultSet.next()) {
                     t = this.build(resultSet);
                 }
-                this.database.close(resultSet);
             } catch (Throwable throwable) {
                 this.database.getLogger().log(Level.SEVERE, throwable.getMessage(), throwable);
+            } finally {
+                this.closeQuietly(database, resultSet);
             }
             return t;
         });
@@ -57,131 +205,721 @@ public abstract class AbstractRepository<T> implements Repository<T>
     public List<T> findAll() throws Exception
     {
         List<T> list = new ArrayList<>();
-        Optional.ofNullable((ResultSet) (this.createQuery().select("*").getResult()))
+        Optional.ofNullable((ResultSet) (this.createQuery().select(this.getMetadata().getSelectColumns()).getResult()))
             .ifPresent(resultSet -> {
                 try {
                     while (resultSet.next()) {
                         list.add(this.build(resultSet));
                     }
-                    this.database.close(resultSet);
                 } catch (Throwable throwable) {
                     this.database.getLogger().log(Level.SEVERE, throwable.getMessage(), throwable);
+                } finally {
+                    this.closeQuietly(this.database, resultSet);
                 }
             });
         return list;
     }
 
-    public void persist(T type) throws Exception
+    @Override
+    public CompletableFuture<Optional<T>> findAsync(Object identifier)
     {
-        StringBuilder builder = new StringBuilder();
-        List<Object> values = new ArrayList<>();
-        if (this.isPersisted(type)) {
-            StringBuilder where = new StringBuilder();
-            List<Object> whereValues = new ArrayList<>();
-            for (Field field : type.getClass().getDeclaredFields()) {
-                if (field.isAnnotationPresent(Column.class)) {
-                    Column column = field.getAnnotation(Column.class);
-                    if (column.key() == Column.Key.PRIMARY) {
-                        if (where.length() != 0) {
-                            where.append(" AND ");
-                        }
-                        where.append(
-                            Optional.of(column.name())
-                                .filter(name -> !name.isEmpty())
-                                .orElse(field.getName().toLowerCase())
-                        ).append("=?");
-                        boolean accessible = field.isAccessible();
-                        field.setAccessible(true);
-                        whereValues.add(field.get(type));
-                        field.setAccessible(accessible);
-                        continue;
-                    }
-                    if (builder.length() != 0) {
-                        builder.append(",");
-                    }
-                    builder.append(
-                        Optional.of(column.name())
-                            .filter(name -> !name.isEmpty())
-                            .orElse(field.getName().toLowerCase())
-                    ).append("=?");
-                    boolean accessible = field.isAccessible();
-                    field.setAccessible(true);
-                    values.add(field.get(type));
-                    field.setAccessible(accessible);
+        return this.database.supplyAsync(() -> this.find(identifier));
+    }
+
+    @Override
+    public CompletableFuture<Optional<T>> findAsync(String column, Object identifier)
+    {
+        return this.database.supplyAsync(() -> this.find(column, identifier));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> findAllAsync()
+    {
+        return this.database.supplyAsync(this::findAll);
+    }
+
+    public CompletableFuture<Void> persistAsync(T type)
+    {
+        return this.database.supplyAsync(() -> {
+            this.persist(type);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> persistAllAsync(Collection<T> types)
+    {
+        return this.database.supplyAsync(() -> {
+            this.persistAll(types);
+            return null;
+        });
+    }
+
+    // the stream holds a connection until it is closed or fully read
+    @Override
+    public Stream<T> stream() throws Exception
+    {
+        return this.createQuery().select(this.getMetadata().getSelectColumns()).stream(this::build);
+    }
+
+    @Override
+    public Flow.Publisher<T> publish() throws Exception
+    {
+        return this.createQuery().select(this.getMetadata().getSelectColumns()).publish(this::build);
+    }
+
+    // only the columns of the projection are read
+    public <P> List<P> findAll(Projection<P> projection) throws Exception
+    {
+        ResultMapper<P> mapper = projection.newMapper();
+        List<P> list = new ArrayList<>();
+        ResultSet resultSet = this.createQuery().select(projection.getColumns()).getResult();
+        try {
+            while (resultSet.next()) {
+                list.add(mapper.map(resultSet));
+            }
+        } catch (Exception exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        } finally {
+            this.database.close(resultSet);
+        }
+        return list;
+    }
+
+    public <P> Optional<P> find(String column, Object identifier, Projection<P> projection) throws Exception
+    {
+        ResultMapper<P> mapper = projection.newMapper();
+        Database<Connection, ResultSet> database = this.getDatabase(column, identifier);
+        ResultSet resultSet = database.query(this.getTableName())
+            .select(projection.getColumns())
+            .where(column + "=?")
+            .limit(1)
+            .getResult(identifier);
+        try {
+            return resultSet.next() ? Optional.ofNullable(mapper.map(resultSet)) : Optional.empty();
+        } catch (Exception exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        } finally {
+            database.close(resultSet);
+        }
+    }
+
+    // entities with only the given columns set, they cannot be persisted as the others would be overwritten
+    public List<T> findAll(String... columns) throws Exception
+    {
+        List<T> list = this.findAll(Projection.of(this.getMetadata(), columns));
+        for (T type : list) {
+            this.partials.add(type);
+        }
+        return list;
+    }
+
+    public Optional<T> find(String column, Object identifier, String... columns) throws Exception
+    {
+        Optional<T> found = this.find(column, identifier, Projection.of(this.getMetadata(), columns));
+        found.ifPresent(this.partials::add);
+        return found;
+    }
+
+    /*
+     * Every row of the table, read over several connections at once: the primary key is cut into ranges scanned
+     * concurrently by a pool of workers, no more than the connections of the database, which also map the rows.
+     * The rows come in no particular order and the workers hold their connection until the stream is fully read
+     * or closed.
+     */
+    public Stream<T> parallelStream() throws Exception
+    {
+        int workers = Math.min(ForkJoinPool.getCommonPoolParallelism() + 1, this.getScanConnections());
+        // more ranges than workers, a worker done with a sparse range takes another one
+        List<long[]> ranges = this.splitPrimaryKey(workers * 4);
+        if (workers > 1 && ranges.size() > 1) {
+            return ParallelScan.stream(ranges, Math.min(workers, ranges.size()), this::scan);
+        }
+        return ranges.stream().flatMap(range -> {
+            try {
+                return this.scan(range);
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception.getMessage(), exception);
+            }
+        });
+    }
+
+    // cuts the primary key in the given number of ranges and gives each one to the consumer on its own thread
+    public void scan(int partitions, PartitionConsumer<T> consumer) throws Exception
+    {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Invalid number of partitions : " + partitions);
+        }
+        List<long[]> ranges = this.splitPrimaryKey(partitions);
+        List<Callable<Void>> tasks = new ArrayList<>(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            int partition = i;
+            long[] range = ranges.get(i);
+            tasks.add(() -> {
+                try (Stream<T> rows = this.scan(range)) {
+                    consumer.accept(partition, rows);
                 }
+                return null;
+            });
+        }
+        int workers = Math.min(tasks.size(), this.getScanConnections());
+        if (workers <= 1) {
+            for (Callable<Void> task : tasks) {
+                task.call();
             }
-            values.addAll(whereValues);
-            this.createQuery()
-                .update(builder.toString())
-                .where(where.toString())
-                .execute(values.toArray(new Object[0]));
             return;
         }
-        List<String> columns = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException exception) {
+                    Throwable cause = exception.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : exception;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // a single connection cannot stream several result sets at once
+    private int getScanConnections()
+    {
+        DatabaseSettings settings = this.getDatabaseSettings();
+        if (settings == null) {
+            return Integer.MAX_VALUE;
+        }
+        return settings.isPooled() ? settings.getMaximumPoolSize() : 1;
+    }
 
-        for (Field field : type.getClass().getDeclaredFields()) {
-            if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
-                if (column.key() == Column.Key.PRIMARY && column.autoIncrement()) {
-                    continue;
+    // [low, high] ranges of the primary key, of about the same width, read from its MIN and MAX
+    private List<long[]> splitPrimaryKey(int count) throws Exception
+    {
+        EntityMetadata<T> metadata = this.getMetadata();
+        List<EntityMetadata.ColumnMetadata> primaryKeys = metadata.getPrimaryKeys();
+        if (primaryKeys.size() != 1 || !isIntegral(primaryKeys.get(0).getJavaType())) {
+            throw new IllegalStateException("A parallel scan needs a single integral primary key on " + metadata.getType().getName() + " class !");
+        }
+        String key = primaryKeys.get(0).getName();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        ResultSet resultSet = this.createQuery().select("MIN(" + key + ")", "MAX(" + key + ")").getResult();
+        try {
+            // one row per shard on a sharded database
+            while (resultSet.next()) {
+                long low = resultSet.getLong(1);
+                if (!resultSet.wasNull()) {
+                    min = Math.min(min, low);
+                    max = Math.max(max, resultSet.getLong(2));
                 }
-                columns.add(
-                    Optional.of(column.name())
-                        .filter(name -> !name.isEmpty())
-                        .orElse(field.getName().toLowerCase())
-                );
-                if (builder.length() != 0) {
-                    builder.append(',');
+            }
+        } finally {
+            this.database.close(resultSet);
+        }
+        List<long[]> ranges = new ArrayList<>(count);
+        if (min > max) {
+            return ranges;
+        }
+        double width = ((double) max - min + 1) / count;
+        long low = min;
+        for (int i = 1; i <= count && low <= max; i++) {
+            long high = i == count ? max : min + (long) (width * i) - 1;
+            if (high >= low) {
+                ranges.add(new long[]{low, high});
+                low = high + 1;
+            }
+        }
+        return ranges;
+    }
+
+    private static boolean isIntegral(Class<?> type)
+    {
+        return type == long.class || type == Long.class || type == int.class || type == Integer.class
+            || type == short.class || type == Short.class || type == byte.class || type == Byte.class;
+    }
+
+    private Stream<T> scan(long[] range) throws Exception
+    {
+        String key = this.getMetadata().getPrimaryKeys().get(0).getName();
+        return this.createQuery()
+            .select(this.getMetadata().getSelectColumns())
+            .where(key + ">=? AND " + key + "<=?")
+            .stream(this.newPartitionMapper(), range[0], range[1]);
+    }
+
+    // build() keeps one mapper for the last result set seen, the partitions read in parallel each bind their own
+    private ResultMapper<T> newPartitionMapper() throws Exception
+    {
+        if (!this.isCompiledRowMappers() || this.isCustomBuild()) {
+            return this::build;
+        }
+        return new PartitionMapper<>(this, this.getMetadata());
+    }
+
+    private boolean isCustomBuild()
+    {
+        Boolean customBuild = this.customBuild;
+        if (customBuild == null) {
+            customBuild = false;
+            for (Class<?> type = this.getClass(); type != AbstractRepository.class; type = type.getSuperclass()) {
+                try {
+                    type.getDeclaredMethod("build", ResultSet.class);
+                    customBuild = true;
+                    break;
+                } catch (NoSuchMethodException ignored) {
+                    // declared further up
                 }
-                builder.append('?');
-                boolean accessible = field.isAccessible();
-                field.setAccessible(true);
-                values.add(field.get(type));
-                field.setAccessible(accessible);
             }
+            this.customBuild = customBuild;
         }
-        this.createQuery()
-            .insertInto(columns, builder.toString())
-            .execute(values.toArray(new Object[0]));
+        return customBuild;
     }
 
-    protected boolean isPersisted(T type) throws Exception
+    // pages ordered by primary key, the cursor of the first page is null
+    @Override
+    public Page<T> page(String cursor, int size) throws Exception
+    {
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.getMetadata().getPrimaryKeys();
+        if (primaryKeys.isEmpty()) {
+            throw new IllegalStateException("No primary key declared on " + this.getMetadata().getType().getName() + " class !");
+        }
+        Query<ResultSet> query = this.createQuery().select(this.getMetadata().getSelectColumns());
+        for (EntityMetadata.ColumnMetadata column : primaryKeys) {
+            query.orderBy(column.getName(), Query.Order.ASC);
+        }
+        return query.page(this::build, cursor, size);
+    }
+
+    // a session writing only the columns changed on the entities it loaded
+    public UnitOfWork<T> openUnitOfWork() throws MissingAnnotationException
     {
-        List<Object> values = new ArrayList<>();
-        StringBuilder builder = new StringBuilder();
-        for (Field field : type.getClass().getDeclaredFields()) {
-            if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
-                if (column.key() == Column.Key.PRIMARY) {
-                    boolean accessible = field.isAccessible();
-                    field.setAccessible(true);
-                    if (column.autoIncrement() && field.get(type).equals(0)) {
-                        field.setAccessible(accessible);
-                        return false;
+        return new UnitOfWork<>(this, this.getMetadata());
+    }
+
+    public void persist(T type) throws Exception
+    {
+        this.checkComplete(type);
+        this.write(this.getDatabase(type), type);
+        this.refreshCache(type);
+    }
+
+    private void checkComplete(T type)
+    {
+        if (this.partials.contains(type)) {
+            throw new IllegalArgumentException("Cannot persist an entity read with only some of its columns, the others would be overwritten.");
+        }
+    }
+
+    // the lazy columns never read are left as they are in the row, they would only be read to be written back
+    private List<EntityMetadata.ColumnMetadata> loadedColumns(T type, List<EntityMetadata.ColumnMetadata> columns)
+    {
+        if (!this.metadata.hasLazyColumns()) {
+            return columns;
+        }
+        List<EntityMetadata.ColumnMetadata> loaded = null;
+        try {
+            for (int i = 0; i < columns.size(); i++) {
+                EntityMetadata.ColumnMetadata column = columns.get(i);
+                Object value = column.isLazy() ? column.get(type) : null;
+                if (value instanceof Lazy && !((Lazy<?>) value).isLoaded()) {
+                    if (loaded == null) {
+                        loaded = new ArrayList<>(columns.subList(0, i));
                     }
-                    if (builder.length() != 0) {
-                        builder.append(" AND ");
+                } else if (loaded != null) {
+                    loaded.add(column);
+                }
+            }
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        }
+        return loaded != null ? loaded : columns;
+    }
+
+    private void write(Database<Connection, ResultSet> database, T type) throws Exception
+    {
+        EntityMetadata<T> metadata = this.getMetadata();
+        String table = this.getTableName();
+        if (this.isUpsertPersist() && !metadata.getPrimaryKeys().isEmpty()) {
+            List<EntityMetadata.ColumnMetadata> all = this.hasUnsetKey(type)
+                ? metadata.getInsertableColumns()
+                : metadata.getColumns();
+            List<EntityMetadata.ColumnMetadata> columns = this.loadedColumns(type, all);
+            List<Object> keys = database.query(table)
+                .insertInto(columnNames(columns), placeholders(columns.size()))
+                .onDuplicateKey(columns == all
+                    ? metadata.getUpsertAssignments()
+                    : metadata.getUpsertAssignments(this.loadedColumns(type, metadata.getUpdatableColumns())))
+                .executeAndGetKeys(values(type, columns));
+            this.writeGeneratedKeys(Collections.singletonList(type), keys);
+            return;
+        }
+        if (this.isPersisted(database, type)) {
+            List<EntityMetadata.ColumnMetadata> columns = this.loadedColumns(type, metadata.getUpdatableColumns());
+            if (!columns.isEmpty()) {
+                database.query(table)
+                    .update(columns == metadata.getUpdatableColumns()
+                        ? metadata.getUpdateAssignments()
+                        : EntityMetadata.getUpdateAssignments(columns))
+                    .where(metadata.getPrimaryKeyCondition())
+                    .execute(values(type, columns, metadata.getPrimaryKeys()));
+            }
+            return;
+        }
+        // a key set by the caller is written, on a sharded database it is the one that picked the shard
+        if (!this.hasUnsetKey(type)) {
+            database.query(table)
+                .insertInto(columnNames(metadata.getColumns()), placeholders(metadata.getColumns().size()))
+                .execute(values(type, metadata.getColumns()));
+            return;
+        }
+        List<Object> keys = database.query(table)
+            .insertInto(columnNames(metadata.getInsertableColumns()), placeholders(metadata.getInsertableColumns().size()))
+            .executeAndGetKeys(values(type, metadata.getInsertableColumns()));
+        this.writeGeneratedKeys(Collections.singletonList(type), keys);
+    }
+
+    // copies the keys generated by an INSERT back into the auto increment field of the entities
+    private void writeGeneratedKeys(List<T> types, List<Object> keys)
+    {
+        EntityMetadata.ColumnMetadata column = this.metadata.getAutoIncrementColumn();
+        if (column == null || keys.size() != types.size()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                column.set(types.get(i), toKeyType((Number) keys.get(i), column.getJavaType()));
+            }
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        }
+    }
+
+    private static Object toKeyType(Number key, Class<?> type)
+    {
+        if (type == int.class || type == Integer.class) {
+            return key.intValue();
+        }
+        if (type == long.class || type == Long.class) {
+            return key.longValue();
+        }
+        if (type == short.class || type == Short.class) {
+            return key.shortValue();
+        }
+        if (type == BigInteger.class) {
+            return new BigInteger(key.toString());
+        }
+        return key;
+    }
+
+    @Override
+    public void persistAll(Collection<T> types) throws Exception
+    {
+        this.persistAll(types, this.getBatchSize());
+    }
+
+    public void persistAll(Collection<T> types, int batchSize) throws Exception
+    {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size : " + batchSize);
+        }
+        for (T type : types) {
+            this.checkComplete(type);
+        }
+        if (!(this.database instanceof ShardedDatabase)) {
+            this.persistAll(this.database, types, batchSize);
+        } else {
+            // one round of batches per shard, with the entities it owns
+            Map<Database<Connection, ResultSet>, List<T>> shards = new LinkedHashMap<>();
+            for (T type : types) {
+                shards.computeIfAbsent(this.getDatabase(type), ignored -> new ArrayList<>()).add(type);
+            }
+            for (Map.Entry<Database<Connection, ResultSet>, List<T>> shard : shards.entrySet()) {
+                this.persistAll(shard.getKey(), shard.getValue(), batchSize);
+            }
+        }
+        for (T type : types) {
+            this.refreshCache(type);
+        }
+    }
+
+    private void persistAll(Database<Connection, ResultSet> database, Collection<T> types, int batchSize) throws Exception
+    {
+        EntityMetadata<T> metadata = this.getMetadata();
+        String table = this.getTableName();
+        List<T> inserts = new ArrayList<>();
+        List<T> candidates = new ArrayList<>();
+        for (T type : types) {
+            if (metadata.getPrimaryKeys().isEmpty() || this.hasUnsetKey(type)) {
+                inserts.add(type);
+            } else {
+                candidates.add(type);
+            }
+        }
+        List<T> updates = new ArrayList<>();
+        // the new rows whose auto increment key was set by the caller, it is written instead of being generated
+        List<T> keyedInserts = new ArrayList<>();
+        Set<List<Object>> existing = this.findExistingKeys(database, candidates, batchSize);
+        for (T type : candidates) {
+            (existing.contains(this.keyOf(type)) ? updates : keyedInserts).add(type);
+        }
+
+        this.insertAll(database, inserts, metadata.getInsertableColumns(), batchSize, true);
+        this.insertAll(database, keyedInserts, metadata.getColumns(), batchSize, false);
+
+        // one statement per set of columns written, they differ by the lazy columns left unread
+        Map<List<EntityMetadata.ColumnMetadata>, List<Object[]>> batches = new LinkedHashMap<>();
+        for (T type : updates) {
+            List<EntityMetadata.ColumnMetadata> written = this.loadedColumns(type, metadata.getUpdatableColumns());
+            if (!written.isEmpty()) {
+                batches.computeIfAbsent(written, ignored -> new ArrayList<>()).add(values(type, written, metadata.getPrimaryKeys()));
+            }
+        }
+        for (Map.Entry<List<EntityMetadata.ColumnMetadata>, List<Object[]>> batch : batches.entrySet()) {
+            String assignments = batch.getKey().equals(metadata.getUpdatableColumns())
+                ? metadata.getUpdateAssignments()
+                : EntityMetadata.getUpdateAssignments(batch.getKey());
+            List<Object[]> rows = batch.getValue();
+            for (int from = 0; from < rows.size(); from += batchSize) {
+                database.query(table)
+                    .update(assignments)
+                    .where(metadata.getPrimaryKeyCondition())
+                    .executeBatch(rows.subList(from, Math.min(from + batchSize, rows.size())));
+            }
+        }
+    }
+
+    private void insertAll(Database<Connection, ResultSet> database, List<T> types,
+                           List<EntityMetadata.ColumnMetadata> insertable, int batchSize, boolean generated) throws Exception
+    {
+        String[] columns = columnNames(insertable);
+        String[] placeholders = placeholders(insertable.size());
+        for (int from = 0; from < types.size(); from += batchSize) {
+            List<T> chunk = types.subList(from, Math.min(from + batchSize, types.size()));
+            String[][] rows = new String[chunk.size()][];
+            Object[] values = new Object[chunk.size() * insertable.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = placeholders;
+                System.arraycopy(values(chunk.get(i), insertable), 0, values, i * insertable.size(), insertable.size());
+            }
+            Query<ResultSet> query = database.query(this.getTableName());
+            query.insertInto(columns, rows);
+            if (generated) {
+                this.writeGeneratedKeys(chunk, query.executeAndGetKeys(values));
+            } else {
+                query.execute(values);
+            }
+        }
+    }
+
+    // number of rows written per statement by persistAll
+    protected int getBatchSize()
+    {
+        return 500;
+    }
+
+    // the primary keys of the given entities which already have a row, read with one query per batch
+    private Set<List<Object>> findExistingKeys(Database<Connection, ResultSet> database, List<T> types, int batchSize) throws Exception
+    {
+        Set<List<Object>> keys = new HashSet<>();
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.getMetadata().getPrimaryKeys();
+        String[] columns = columnNames(primaryKeys);
+        String tuple = primaryKeys.size() == 1
+            ? "?"
+            : "(" + String.join(",", placeholders(primaryKeys.size())) + ")";
+        for (int from = 0; from < types.size(); from += batchSize) {
+            List<T> chunk = types.subList(from, Math.min(from + batchSize, types.size()));
+            StringBuilder condition = new StringBuilder(primaryKeys.size() == 1 ? columns[0] : "(" + String.join(",", columns) + ")")
+                .append(" IN (");
+            Object[] values = new Object[chunk.size() * primaryKeys.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                condition.append(i == 0 ? "" : ",").append(tuple);
+                System.arraycopy(values(chunk.get(i), primaryKeys), 0, values, i * primaryKeys.size(), primaryKeys.size());
+            }
+            ResultSet resultSet = database.query(this.getTableName())
+                .select(columns)
+                .where(condition.append(')').toString())
+                .getResult(values);
+            try {
+                while (resultSet.next()) {
+                    List<Object> key = new ArrayList<>(columns.length);
+                    for (int i = 1; i <= columns.length; i++) {
+                        key.add(normalizeKey(resultSet.getObject(i)));
                     }
-                    builder.append(
-                        Optional.of(column.name())
-                            .filter(name -> !name.isEmpty())
-                            .orElse(field.getName().toLowerCase())
-                    ).append("=?");
-                    values.add(field.get(type));
-                    field.setAccessible(accessible);
+                    keys.add(key);
                 }
+            } finally {
+                database.close(resultSet);
             }
         }
-        try (ResultSet resultSet = this.createQuery()
-                .select("COUNT(*) count")
-                .where(builder.toString())
-                .getResult(values.toArray(new Object[0]))
-        ) {
-            if (resultSet.next()) {
-                return resultSet.getLong("count") != 0;
+        return keys;
+    }
+
+    private List<Object> keyOf(T type)
+    {
+        Object[] values = values(type, this.metadata.getPrimaryKeys());
+        for (int i = 0; i < values.length; i++) {
+            values[i] = normalizeKey(values[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    // an INT column may be read back as a Long, integral keys are compared as longs
+    static Object normalizeKey(Object value)
+    {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof BigInteger) {
+            return ((Number) value).longValue();
+        }
+        return value;
+    }
+
+    private boolean hasUnsetKey(T type) throws MissingAnnotationException
+    {
+        EntityMetadata.ColumnMetadata column = this.getMetadata().getAutoIncrementColumn();
+        return column != null && isUnset(values(type, Collections.singletonList(column))[0]);
+    }
+
+    protected boolean isPersisted(T type) throws Exception
+    {
+        return this.isPersisted(this.getDatabase(type), type);
+    }
+
+    private boolean isPersisted(Database<Connection, ResultSet> database, T type) throws Exception
+    {
+        EntityMetadata<T> metadata = this.getMetadata();
+        if (this.hasUnsetKey(type)) {
+            return false;
+        }
+        CompiledQuery query = this.existsQuery;
+        if (query == null) {
+            this.existsQuery = query = this.createQuery()
+                .select("1")
+                .where(metadata.getPrimaryKeyCondition())
+                .limit(1)
+                .compile();
+        }
+        ResultSet resultSet = database.getResults(query, values(type, metadata.getPrimaryKeys()));
+        try {
+            return resultSet.next();
+        } finally {
+            database.close(resultSet);
+        }
+    }
+
+    @SafeVarargs
+    protected static Object[] values(Object type, List<EntityMetadata.ColumnMetadata>... columns)
+    {
+        int size = 0;
+        for (List<EntityMetadata.ColumnMetadata> list : columns) {
+            size += list.size();
+        }
+        Object[] values = new Object[size];
+        int i = 0;
+        try {
+            for (List<EntityMetadata.ColumnMetadata> list : columns) {
+                for (EntityMetadata.ColumnMetadata column : list) {
+                    Object value = column.get(type);
+                    // an unloaded column is read with the others of its batch
+                    values[i++] = value instanceof Lazy ? ((Lazy<?>) value).get() : value;
+                }
             }
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        }
+        return values;
+    }
+
+    protected static String[] columnNames(List<EntityMetadata.ColumnMetadata> columns)
+    {
+        String[] names = new String[columns.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columns.get(i).getName();
+        }
+        return names;
+    }
+
+    protected static String[] placeholders(int count)
+    {
+        String[] placeholders = new String[count];
+        Arrays.fill(placeholders, "?");
+        return placeholders;
+    }
+
+    // an auto increment key left to null or 0 has not been generated yet
+    protected static boolean isUnset(Object value)
+    {
+        return value == null || (value instanceof Number && ((Number) value).longValue() == 0);
+    }
+
+    void close(ResultSet resultSet) throws Exception
+    {
+        this.database.close(resultSet);
+    }
+
+    // the result set may hold a pooled connection, it must always go back through the database
+    private void closeQuietly(Database<Connection, ResultSet> database, ResultSet resultSet)
+    {
+        try {
+            database.close(resultSet);
+        } catch (Throwable throwable) {
+            this.database.getLogger().log(Level.SEVERE, throwable.getMessage(), throwable);
+        }
+    }
+
+    // the shard owning the rows of this column value, the database itself when the rows are not spread by it
+    private Database<Connection, ResultSet> getDatabase(String column, Object value) throws MissingAnnotationException
+    {
+        if (!(this.database instanceof ShardedDatabase)) {
+            return this.database;
+        }
+        EntityMetadata.ColumnMetadata shardKey = this.getMetadata().getShardKey();
+        if (shardKey == null || !shardKey.getName().equalsIgnoreCase(column) || value == null) {
+            return this.database;
+        }
+        return ((ShardedDatabase) this.database).getShard(value);
+    }
+
+    private Database<Connection, ResultSet> getDatabase(T type) throws MissingAnnotationException
+    {
+        if (!(this.database instanceof ShardedDatabase)) {
+            return this.database;
+        }
+        EntityMetadata.ColumnMetadata shardKey = this.getShardKey();
+        Object value = values(type, Collections.singletonList(shardKey))[0];
+        // a key generated by a shard would not say which shard it belongs to
+        if (shardKey.isAutoIncrement() ? isUnset(value) : value == null) {
+            throw new IllegalStateException("The shard key " + shardKey.getName() + " must be set before persisting.");
+        }
+        return ((ShardedDatabase) this.database).getShard(value);
+    }
+
+    // the shard of a row from the values it was loaded with, indexed like EntityMetadata#getColumns()
+    Database<Connection, ResultSet> getDatabase(Object[] loaded) throws MissingAnnotationException
+    {
+        if (!(this.database instanceof ShardedDatabase)) {
+            return this.database;
+        }
+        EntityMetadata.ColumnMetadata shardKey = this.getShardKey();
+        Object value = loaded[shardKey.getIndex()];
+        if (value == null) {
+            throw new IllegalStateException("The shard key " + shardKey.getName() + " of a loaded row is null.");
         }
-        return false;
+        return ((ShardedDatabase) this.database).getShard(value);
+    }
+
+    private EntityMetadata.ColumnMetadata getShardKey() throws MissingAnnotationException
+    {
+        EntityMetadata<T> metadata = this.getMetadata();
+        EntityMetadata.ColumnMetadata shardKey = metadata.getShardKey();
+        if (shardKey == null) {
+            throw new IllegalStateException("No shard key declared on " + metadata.getType().getName() + " class !");
+        }
+        return shardKey;
     }
 
     @Override
@@ -196,38 +934,127 @@ public abstract class AbstractRepository<T> implements Repository<T>
         return this.database.query(this.getTableName(), alias);
     }
 
-    protected String getTableName() throws Exception
+    @SuppressWarnings("unchecked")
+    protected EntityMetadata<T> getMetadata() throws MissingAnnotationException
     {
-        Class<T> clazz = (Class<T>) ((ParameterizedType) this.getClass().getGenericSuperclass())
-            .getActualTypeArguments()[0];
-        if (!clazz.isAnnotationPresent(Table.class)) {
-            throw new MissingAnnotationException("Missing @Table annotation to " + clazz.getName() + " class !");
+        EntityMetadata<T> metadata = this.metadata;
+        if (metadata == null) {
+            Class<T> clazz = (Class<T>) ((ParameterizedType) this.getClass().getGenericSuperclass())
+                .getActualTypeArguments()[0];
+            this.metadata = metadata = EntityMetadata.of(clazz);
         }
-        return Optional.of(clazz.getAnnotation(Table.class).name())
-            .filter(name -> !name.isEmpty())
-            .orElse(clazz.getName().toLowerCase());
+        return metadata;
+    }
+
+    protected String getTableName() throws Exception
+    {
+        return this.getMetadata().getTableName();
     }
 
     protected T build(ResultSet resultSet) throws Throwable
     {
-        Class<T> clazz = (Class<T>) ((ParameterizedType) this.getClass().getGenericSuperclass())
-            .getActualTypeArguments()[0];
-        if (!clazz.isAnnotationPresent(Table.class)) {
-            throw new MissingAnnotationException("Missing @Table annotation to " + clazz.getName() + " class !");
+        EntityMetadata<T> metadata = this.getMetadata();
+        MapperBinding<T> binding = this.mapperBinding;
+        if (binding == null || binding.resultSet != resultSet) {
+            // the column indexes are only resolved once per result set
+            this.mapperBinding = binding = new MapperBinding<>(
+                resultSet, this.isCompiledRowMappers() ? metadata.getRowMapper(resultSet.getMetaData()) : null
+            );
         }
-        T instance = clazz.newInstance();
-        for (Field field : clazz.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Column.class)) {
-                Column column = field.getAnnotation(Column.class);
-                String columnName = Optional.of(column.name())
-                    .filter(name -> !name.isEmpty())
-                    .orElse(field.getName());
-                boolean accessible = field.isAccessible();
-                field.setAccessible(true);
-                field.set(instance, resultSet.getObject(columnName));
-                field.setAccessible(accessible);
+        T instance;
+        if (binding.mapper != null) {
+            instance = binding.mapper.map(resultSet);
+        } else {
+            instance = metadata.newInstance();
+            for (EntityMetadata.ColumnMetadata column : metadata.getColumns()) {
+                if (!column.isLazy()) {
+                    column.set(instance, resultSet.getObject(column.getName()));
+                }
             }
         }
+        if (metadata.hasLazyColumns()) {
+            binding.lazy = this.attachLazy(binding.lazy, instance);
+        }
         return instance;
     }
+
+    // the entities read from one result set share their batches, of the persistAll batch size
+    private LazyBatch<T> attachLazy(LazyBatch<T> batch, T instance) throws Throwable
+    {
+        if (batch == null || batch.isFull()) {
+            batch = new LazyBatch<>(this, this.metadata, this.getBatchSize());
+        }
+        batch.attach(instance);
+        return batch;
+    }
+
+    protected boolean isUpsertPersist()
+    {
+        DatabaseSettings settings = this.getDatabaseSettings();
+        return settings != null && settings.isUpsertPersist();
+    }
+
+    protected boolean isCompiledRowMappers()
+    {
+        DatabaseSettings settings = this.getDatabaseSettings();
+        return settings != null && settings.isCompiledRowMappers();
+    }
+
+    // the settings of the database writing the rows, null when it is not a DatabaseImpl
+    private DatabaseSettings getDatabaseSettings()
+    {
+        Database<Connection, ResultSet> database = this.database instanceof RoutingDatabase
+            ? ((RoutingDatabase) this.database).getPrimary()
+            : this.database instanceof ShardedDatabase
+            ? ((ShardedDatabase) this.database).getShards().get(0)
+            : this.database;
+        return database instanceof DatabaseImpl ? ((DatabaseImpl) database).getSettings() : null;
+    }
+
+    @FunctionalInterface
+    public interface PartitionConsumer<T>
+    {
+        // runs on a worker thread, at the same time as the other partitions
+        void accept(int partition, Stream<T> rows) throws Exception;
+    }
+
+    private static final class PartitionMapper<T> implements ResultMapper<T>
+    {
+        private final AbstractRepository<T> repository;
+        private final EntityMetadata<T> metadata;
+        private RowMapper<T> mapper;
+        private LazyBatch<T> lazy;
+
+        private PartitionMapper(AbstractRepository<T> repository, EntityMetadata<T> metadata)
+        {
+            this.repository = repository;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public T map(ResultSet resultSet) throws Throwable
+        {
+            if (this.mapper == null) {
+                this.mapper = this.metadata.getRowMapper(resultSet.getMetaData());
+            }
+            T instance = this.mapper.map(resultSet);
+            if (this.metadata.hasLazyColumns()) {
+                this.lazy = this.repository.attachLazy(this.lazy, instance);
+            }
+            return instance;
+        }
+    }
+
+    private static final class MapperBinding<T>
+    {
+        private final ResultSet resultSet;
+        private final RowMapper<T> mapper;
+        private LazyBatch<T> lazy;
+
+        private MapperBinding(ResultSet resultSet, RowMapper<T> mapper)
+        {
+            this.resultSet = resultSet;
+            this.mapper = mapper;
+        }
+    }
 }
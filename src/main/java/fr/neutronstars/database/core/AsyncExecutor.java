@@ -0,0 +1,88 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs the blocking database calls of the async API. Tasks get a virtual thread each on JDK 21+, a bounded
+ * platform pool otherwise, and never more than `capacity` of them talk to the database at the same time.
+ */
+final class AsyncExecutor
+{
+    private final Executor executor;
+    private final Semaphore permits;
+
+    AsyncExecutor(int capacity, Executor executor)
+    {
+        this.permits = new Semaphore(capacity, true);
+        this.executor = executor != null ? executor : createExecutor(capacity);
+    }
+
+    private static Executor createExecutor(int capacity)
+    {
+        if (Runtime.version().feature() >= 21) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // fall back to platform threads
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            capacity, capacity, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "database-async-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    <V> CompletableFuture<V> submit(Callable<V> task)
+    {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        this.executor.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                this.permits.acquire();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(exception);
+                return;
+            }
+            try {
+                future.complete(task.call());
+            } catch (Throwable throwable) {
+                future.completeExceptionally(throwable);
+            } finally {
+                this.permits.release();
+            }
+        });
+        return future;
+    }
+}
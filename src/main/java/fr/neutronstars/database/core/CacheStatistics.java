@@ -0,0 +1,90 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class CacheStatistics
+{
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadTime = new LongAdder();
+
+    void hit()
+    {
+        this.hits.increment();
+    }
+
+    void miss()
+    {
+        this.misses.increment();
+    }
+
+    void eviction()
+    {
+        this.evictions.increment();
+    }
+
+    void load(long nanos)
+    {
+        this.loads.increment();
+        this.loadTime.add(nanos);
+    }
+
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    public long getEvictions()
+    {
+        return this.evictions.sum();
+    }
+
+    public long getLoads()
+    {
+        return this.loads.sum();
+    }
+
+    public double getHitRatio()
+    {
+        long hits = this.getHits();
+        long total = hits + this.getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    // mean time spent querying the database on a miss
+    public double getAverageLoadNanos()
+    {
+        long loads = this.getLoads();
+        return loads == 0 ? 0 : (double) this.loadTime.sum() / loads;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CacheStatistics{hits=" + this.getHits() + ", misses=" + this.getMisses()
+            + ", evictions=" + this.getEvictions() + ", hitRatio=" + this.getHitRatio()
+            + ", averageLoad=" + (long) this.getAverageLoadNanos() + "ns}";
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.CompiledQuery;
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.ResultMapper;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/*
+ * Immutable, the same instance can be run concurrently. The SQL string is built once and reused as is,
+ * so the statement cache of each connection prepares it a single time.
+ */
+public final class CompiledQueryImpl implements CompiledQuery
+{
+    private final Database<Connection, ResultSet> database;
+    private final String sql;
+    private final int parameterCount;
+    private final Set<String> tables;
+    private final long cacheTimeToLive;
+
+    CompiledQueryImpl(Database<Connection, ResultSet> database, String sql, Set<String> tables, long cacheTimeToLive)
+    {
+        this.database = database;
+        this.sql = sql;
+        this.parameterCount = countParameters(sql);
+        this.tables = Collections.unmodifiableSet(new HashSet<>(tables));
+        this.cacheTimeToLive = cacheTimeToLive;
+    }
+
+    // the '?' outside of quoted strings and identifiers
+    static int countParameters(String sql)
+    {
+        int count = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && quote != '`') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String getSql()
+    {
+        return this.sql;
+    }
+
+    @Override
+    public int getParameterCount()
+    {
+        return this.parameterCount;
+    }
+
+    @Override
+    public Set<String> getTables()
+    {
+        return this.tables;
+    }
+
+    @Override
+    public long getCacheTimeToLive()
+    {
+        return this.cacheTimeToLive;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R getResult(Object... params) throws Exception
+    {
+        return (R) this.database.getResults(this, this.check(params));
+    }
+
+    @Override
+    public <E> Stream<E> stream(ResultMapper<E> mapper, Object... params) throws Exception
+    {
+        return this.database.stream(this, mapper, this.check(params));
+    }
+
+    @Override
+    public void execute(Object... params) throws Exception
+    {
+        this.database.execute(this, this.check(params));
+    }
+
+    @Override
+    public List<Object> executeAndGetKeys(Object... params) throws Exception
+    {
+        return this.database.executeAndGetKeys(this, this.check(params));
+    }
+
+    @Override
+    public void executeBatch(List<Object[]> params) throws Exception
+    {
+        for (Object[] batch : params) {
+            this.check(batch);
+        }
+        this.database.executeBatch(this, params);
+    }
+
+    // the result set must still be closed through the database once read
+    @Override
+    public <R> CompletableFuture<R> getResultAsync(Object... params)
+    {
+        return this.database.supplyAsync(() -> this.getResult(params));
+    }
+
+    @Override
+    public CompletableFuture<Void> executeAsync(Object... params)
+    {
+        return this.database.supplyAsync(() -> {
+            this.execute(params);
+            return null;
+        });
+    }
+
+    private Object[] check(Object[] params)
+    {
+        if (params.length != this.parameterCount) {
+            throw new IllegalArgumentException(
+                "Expected " + this.parameterCount + " parameters but got " + params.length + " for : " + this.sql
+            );
+        }
+        return params;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.sql;
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ConnectionPool
+{
+    private static final long HOUSEKEEPING_PERIOD = TimeUnit.SECONDS.toMillis(5);
+
+    private final Factory factory;
+    private final DatabaseSettings settings;
+    private final StatementCacheStatistics statementCacheStatistics;
+    private final Logger logger;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, Entry> leased = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    public ConnectionPool(Factory factory, DatabaseSettings settings, Logger logger)
+    {
+        this(factory, settings, new StatementCacheStatistics(), logger);
+    }
+
+    public ConnectionPool(Factory factory, DatabaseSettings settings, StatementCacheStatistics statementCacheStatistics, Logger logger)
+    {
+        this.factory = factory;
+        this.settings = settings;
+        this.statementCacheStatistics = statementCacheStatistics;
+        this.logger = logger;
+        this.permits = new Semaphore(settings.getMaximumPoolSize(), true);
+    }
+
+    public ConnectionPool start() throws SQLException
+    {
+        for (int i = 0; i < this.settings.getMinimumPoolSize(); i++) {
+            this.idle.offerLast(this.open());
+        }
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "database-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.housekeeper.scheduleWithFixedDelay(
+            this::housekeep, HOUSEKEEPING_PERIOD, HOUSEKEEPING_PERIOD, TimeUnit.MILLISECONDS
+        );
+        return this;
+    }
+
+    public Connection borrow() throws SQLException
+    {
+        if (this.closed) {
+            throw new SQLException("The connection pool is closed !");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.settings.getBorrowTimeout(), TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException(
+                    "Timed out after " + this.settings.getBorrowTimeout() + "ms waiting for a connection ("
+                        + this.leased.size() + "/" + this.settings.getMaximumPoolSize() + " in use)."
+                );
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.", exception);
+        }
+        try {
+            Entry entry;
+            // the most recently released connection is taken first, it is the most likely to be valid
+            while ((entry = this.idle.pollFirst()) != null) {
+                if (this.validate(entry)) {
+                    break;
+                }
+                this.discard(entry);
+            }
+            if (entry == null) {
+                entry = this.open();
+            }
+            entry.borrowedAt = System.currentTimeMillis();
+            entry.borrowTrace = this.settings.getLeakDetectionThreshold() > 0
+                ? new Throwable("Connection borrowed by " + Thread.currentThread().getName())
+                : null;
+            entry.leakReported = false;
+            this.leased.put(entry.connection, entry);
+            return entry.connection;
+        } catch (SQLException | RuntimeException exception) {
+            this.permits.release();
+            throw exception;
+        }
+    }
+
+    public void release(Connection connection)
+    {
+        Entry entry = this.leased.remove(connection);
+        if (entry == null) {
+            return;
+        }
+        entry.releasedAt = System.currentTimeMillis();
+        if (this.closed) {
+            this.discard(entry);
+        } else {
+            this.idle.offerFirst(entry);
+        }
+        this.permits.release();
+    }
+
+    // removes a broken connection from the pool, a new one is opened on the next borrow
+    public void invalidate(Connection connection)
+    {
+        Entry entry = this.leased.remove(connection);
+        if (entry == null) {
+            return;
+        }
+        this.discard(entry);
+        this.permits.release();
+    }
+
+    // a proxy handing the connection back to the pool when it is closed
+    public Connection lease() throws SQLException
+    {
+        Connection connection = this.borrow();
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[]{Connection.class},
+            new Lease(this, connection)
+        );
+    }
+
+    StatementCache getStatementCache(Connection connection)
+    {
+        Entry entry = this.leased.get(connection);
+        return entry != null ? entry.statementCache : null;
+    }
+
+    public int getIdleCount()
+    {
+        return this.idle.size();
+    }
+
+    public int getActiveCount()
+    {
+        return this.leased.size();
+    }
+
+    public int getMaximumSize()
+    {
+        return this.settings.getMaximumPoolSize();
+    }
+
+    public void close()
+    {
+        this.closed = true;
+        if (this.housekeeper != null) {
+            this.housekeeper.shutdownNow();
+        }
+        Entry entry;
+        while ((entry = this.idle.pollFirst()) != null) {
+            this.discard(entry);
+        }
+        for (Entry lease : this.leased.values()) {
+            this.logger.warning("Closing the pool while a connection is still in use.");
+            this.discard(lease);
+        }
+        this.leased.clear();
+    }
+
+    private Entry open() throws SQLException
+    {
+        return new Entry(
+            this.factory.open(),
+            new StatementCache(this.settings.getStatementCacheSize(), this.statementCacheStatistics)
+        );
+    }
+
+    private boolean validate(Entry entry)
+    {
+        try {
+            if (entry.connection.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - entry.releasedAt < this.settings.getValidationInterval()) {
+                return true;
+            }
+            return entry.connection.isValid(
+                (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(this.settings.getBorrowTimeout()))
+            );
+        } catch (SQLException exception) {
+            return false;
+        }
+    }
+
+    private void discard(Entry entry)
+    {
+        entry.statementCache.clear();
+        try {
+            entry.connection.close();
+        } catch (SQLException exception) {
+            this.logger.log(Level.FINE, exception.getMessage(), exception);
+        }
+    }
+
+    private void housekeep()
+    {
+        try {
+            long now = System.currentTimeMillis();
+            int surplus = this.idle.size() + this.leased.size() - this.settings.getMinimumPoolSize();
+            Iterator<Entry> iterator = this.idle.descendingIterator();
+            while (surplus > 0 && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (now - entry.releasedAt >= this.settings.getIdleTimeout() && this.idle.removeFirstOccurrence(entry)) {
+                    this.discard(entry);
+                    surplus--;
+                }
+            }
+            while (!this.closed && this.idle.size() + this.leased.size() < this.settings.getMinimumPoolSize()) {
+                this.idle.offerLast(this.open());
+            }
+            long threshold = this.settings.getLeakDetectionThreshold();
+            if (threshold > 0) {
+                for (Entry entry : this.leased.values()) {
+                    if (!entry.leakReported && now - entry.borrowedAt >= threshold) {
+                        entry.leakReported = true;
+                        this.logger.log(
+                            Level.WARNING,
+                            "Connection leak detected, borrowed " + (now - entry.borrowedAt) + "ms ago and never released.",
+                            entry.borrowTrace
+                        );
+                    }
+                }
+            }
+        } catch (Throwable throwable) {
+            this.logger.log(Level.SEVERE, throwable.getMessage(), throwable);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Factory
+    {
+        Connection open() throws SQLException;
+    }
+
+    private static final class Lease implements InvocationHandler
+    {
+        private static final int PURGE_THRESHOLD = 64;
+
+        private final ConnectionPool pool;
+        private final Connection connection;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+
+        private Lease(ConnectionPool pool, Connection connection)
+        {
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            switch (method.getName()) {
+                case "close":
+                    // only the first close releases, the connection may be leased to another thread afterwards
+                    if (this.closed.compareAndSet(false, true)) {
+                        this.closeStatements();
+                        this.pool.release(this.connection);
+                    }
+                    return null;
+                case "isClosed":
+                    return this.closed.get() || this.connection.isClosed();
+                case "isValid":
+                    if (this.closed.get()) {
+                        return false;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Lease@" + Integer.toHexString(System.identityHashCode(proxy)) + (this.closed.get() ? " (closed)" : "");
+            }
+            if (this.closed.get()) {
+                throw new SQLException("The connection has been closed and handed back to the pool.");
+            }
+            if (method.getName().equals("unwrap") && ((Class<?>) args[0]).isInstance(this.connection)) {
+                return this.connection;
+            }
+            Object result;
+            try {
+                result = method.invoke(this.connection, args);
+            } catch (InvocationTargetException exception) {
+                throw exception.getCause();
+            }
+            if (result instanceof Statement) {
+                this.track((Statement) result);
+            }
+            return result;
+        }
+
+        private void track(Statement statement) throws SQLException
+        {
+            if (this.statements.size() >= PURGE_THRESHOLD) {
+                for (Iterator<Statement> iterator = this.statements.iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().isClosed()) {
+                        iterator.remove();
+                    }
+                }
+            }
+            this.statements.add(statement);
+        }
+
+        private void closeStatements()
+        {
+            for (Statement statement : this.statements) {
+                try {
+                    statement.close();
+                } catch (SQLException exception) {
+                    this.pool.logger.log(Level.FINE, exception.getMessage(), exception);
+                }
+            }
+            this.statements.clear();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final Connection connection;
+        private final StatementCache statementCache;
+        private volatile long borrowedAt;
+        private volatile long releasedAt;
+        private volatile Throwable borrowTrace;
+        private volatile boolean leakReported;
+
+        private Entry(Connection connection, StatementCache statementCache)
+        {
+            this.connection = connection;
+            this.statementCache = statementCache;
+            this.releasedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -15,15 +15,31 @@
  */
 package fr.neutronstars.database.core;
 
+import fr.neutronstars.database.api.CompiledQuery;
 import fr.neutronstars.database.api.Database;
 import fr.neutronstars.database.api.Query;
+import fr.neutronstars.database.api.ResultMapper;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DatabaseImpl implements Database<Connection, ResultSet>
 {
     private static final Logger LOGGER = Logger.getLogger("DATABASE");
+    private static final Set<String> ANY_TABLE = Collections.singleton(Query.ANY_TABLE);
 
     static {
         try {
@@ -50,14 +66,43 @@ public class DatabaseImpl implements Database<Connection, ResultSet>
 
     public static Database<Connection, ResultSet> create(String host, String port, String database, String user, String password, String charset)
     {
-        return new DatabaseImpl(host, port, database, user, password, charset);
+        return DatabaseImpl.create(host, port, database, user, password, charset, DatabaseSettings.create());
+    }
+
+    public static Database<Connection, ResultSet> create(String host, String port, String database, String user, String password, DatabaseSettings settings)
+    {
+        return DatabaseImpl.create(host, port, database, user, password, "utf-8", settings);
+    }
+
+    public static Database<Connection, ResultSet> create(String host, String port, String database, String user, String password, String charset, DatabaseSettings settings)
+    {
+        return new DatabaseImpl(host, port, database, user, password, charset, settings);
     }
 
     protected final String host, port, database, user, password, charset;
+    protected final DatabaseSettings settings;
     protected Connection connection;
+    protected ConnectionPool pool;
+    protected StatementCache statementCache;
+    private volatile AsyncExecutor asyncExecutor;
+    private final ResultCache resultCache;
+    private final DatabaseMetrics metrics;
+    private final SlowQueryLog slowQueryLog;
+    private final IndexAdvisor indexAdvisor;
+    // whether the statements are timed, for the metrics, the slow query log or the index advisor
+    private final boolean timed;
+    // the transaction of each thread, its connection is used by every query the thread runs
+    private final ThreadLocal<Transaction> transactions = new ThreadLocal<>();
+
+    private final StatementCacheStatistics statementCacheStatistics = new StatementCacheStatistics();
 
     // to allow polymorphism
     protected DatabaseImpl(String host, String port, String database, String user, String password, String charset)
+    {
+        this(host, port, database, user, password, charset, DatabaseSettings.create());
+    }
+
+    protected DatabaseImpl(String host, String port, String database, String user, String password, String charset, DatabaseSettings settings)
     {
         this.host = host;
         this.port = port;
@@ -65,19 +110,41 @@ public class DatabaseImpl implements Database<Connection, ResultSet>
         this.user = user;
         this.password = password;
         this.charset = charset;
+        this.settings = settings;
+        this.resultCache = settings.getResultCacheSize() > 0 ? new ResultCache(settings.getResultCacheSize()) : null;
+        this.metrics = settings.isMetrics() ? new DatabaseMetrics() : null;
+        this.slowQueryLog = settings.getSlowQueryThreshold() > 0
+            ? new SlowQueryLog(settings, this::openConnection, LOGGER)
+            : null;
+        this.indexAdvisor = settings.isIndexAdvisor() ? new IndexAdvisor(this::openConnection) : null;
+        this.timed = this.metrics != null || this.slowQueryLog != null || this.indexAdvisor != null;
     }
 
     @Override
     public Database<Connection, ResultSet> connect() throws SQLException
     {
-        this.connection = DriverManager.getConnection(
+        if (this.settings.isPooled()) {
+            this.pool = new ConnectionPool(this::openConnection, this.settings, this.statementCacheStatistics, LOGGER).start();
+        } else {
+            this.connection = this.openConnection();
+            this.statementCache = new StatementCache(this.settings.getStatementCacheSize(), this.statementCacheStatistics);
+        }
+        if (this.metrics != null) {
+            // the replicas of a database share its name
+            this.metrics.register(this.database + "@" + this.host + ":" + this.port, LOGGER);
+        }
+        return this;
+    }
+
+    protected Connection openConnection() throws SQLException
+    {
+        return DriverManager.getConnection(
                 "jdbc:mysql://"+this.host+":"+this.port+"/"+this.database+"?useUnicode=true&characterEncoding="
                         +this.charset+"&useJDBCCompliantTimezoneShift=true&useLegacyDatetimeCode=false"
-                        +"&serverTimezone=UTC",
+                        +"&serverTimezone=UTC&rewriteBatchedStatements=true",
                 this.user,
                 this.password
         );
-        return this;
     }
 
     @Override
@@ -92,9 +159,27 @@ public class DatabaseImpl implements Database<Connection, ResultSet>
     {
         if(this.connection != null)
         {
+            this.statementCache.clear();
             this.connection.close();
             this.connection = null;
         }
+        if(this.pool != null)
+        {
+            this.pool.close();
+            this.pool = null;
+        }
+        if(this.resultCache != null)
+        {
+            this.resultCache.invalidateAll();
+        }
+        if(this.metrics != null)
+        {
+            this.metrics.unregister(LOGGER);
+        }
+        if(this.slowQueryLog != null)
+        {
+            this.slowQueryLog.close();
+        }
         return this;
     }
 
@@ -104,9 +189,49 @@ public class DatabaseImpl implements Database<Connection, ResultSet>
         return DatabaseImpl.LOGGER;
     }
 
+    // in pooled mode the caller owns the connection and must close it to give it back
     @Override
     public Connection get() {
-        return this.connection;
+        if(this.pool == null){
+            return this.connection;
+        }
+        try {
+            return this.pool.lease();
+        } catch (SQLException sqlException) {
+            throw new IllegalStateException(sqlException.getMessage(), sqlException);
+        }
+    }
+
+    public DatabaseSettings getSettings() {
+        return this.settings;
+    }
+
+    public ConnectionPool getPool() {
+        return this.pool;
+    }
+
+    public StatementCacheStatistics getStatementCacheStatistics() {
+        return this.statementCacheStatistics;
+    }
+
+    // null when the metrics are disabled
+    public DatabaseMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    // null when no slow query threshold is set
+    public SlowQueryLog getSlowQueryLog() {
+        return this.slowQueryLog;
+    }
+
+    // null when the index advisor is disabled
+    public IndexAdvisor getIndexAdvisor() {
+        return this.indexAdvisor;
+    }
+
+    // null when the result cache is disabled
+    public CacheStatistics getResultCacheStatistics() {
+        return this.resultCache != null ? this.resultCache.getStatistics() : null;
     }
 
     @Override
@@ -121,17 +246,45 @@ public class DatabaseImpl implements Database<Connection, ResultSet>
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <E> Query<E> query(Query<?> query, String alias)
     {
         if(alias == null){
             throw new IllegalArgumentException("Alias is mandatory for nested queries.");
         }
-        return this.query("(" + query.toString() + ")", alias);
+        return (Query<E>) new QueryImpl(this, "(" + query.toString() + ") AS " + alias, query.getTables());
     }
 
     public ResultSet getResults(Query<?> query, Object... params) throws SQLException
     {
-        return this.getResults(String.valueOf(query), params);
+        return this.getResults(String.valueOf(query), query.getTables(), query.getCacheTimeToLive(), params);
+    }
+
+    @Override
+    public ResultSet getResults(CompiledQuery query, Object... params) throws SQLException
+    {
+        return this.getResults(query.getSql(), query.getTables(), query.getCacheTimeToLive(), params);
+    }
+
+    private ResultSet getResults(String sql, Set<String> tables, long cacheTimeToLive, Object... params) throws SQLException
+    {
+        // a transaction may read its own uncommitted writes, they must not be shared
+        if (this.resultCache == null || cacheTimeToLive <= 0 || tables.contains(Query.ANY_TABLE)
+            || this.transactions.get() != null) {
+            return this.getResults(sql, params);
+        }
+        DetachedResultSet cached = this.resultCache.get(sql, params);
+        if (cached == null) {
+            long generation = this.resultCache.getGeneration();
+            ResultSet resultSet = this.getResults(sql, params);
+            try {
+                cached = DetachedResultSet.capture(resultSet);
+            } finally {
+                this.close(resultSet);
+            }
+            this.resultCache.put(sql, params, tables, cacheTimeToLive, cached, generation);
+        }
+        return cached.open();
     }
 
     public ResultSet getResults(String query, Object... params) throws SQLException
@@ -141,52 +294,642 @@ public class DatabaseImpl implements Database<Connection, ResultSet>
 
     private ResultSet getResults(String query, boolean reconnect, Object... params) throws SQLException
     {
+        Lease lease = this.lease(query);
+        QueryMetrics metrics = this.metricsOf(query);
+        long start = this.timed ? System.nanoTime() : 0;
         try {
-            PreparedStatement statement = this.connection.prepareStatement(query);
-            for (int i = 0; i < params.length; i++) {
-                statement.setObject(i+1, params[i]);
+            lease.bind(params);
+            ResultSet resultSet = lease.statement.executeQuery();
+            this.record(metrics, query, params, start);
+            if (metrics != null) {
+                resultSet = new MeteredResultSet(resultSet, metrics);
             }
-            return statement.executeQuery();
+            return new LeasedResultSet(resultSet, lease);
         }catch (SQLException sqlException) {
-            if (reconnect) {
-                this.reconnect();
+            if (this.retry(lease, metrics, reconnect)) {
                 return this.getResults(query, false, params);
             }
             throw sqlException;
         }
     }
 
+    // rows are fetched one by one from the server when the stream has its own pooled connection,
+    // the stream must be closed or fully read
+    @Override
+    public <E> Stream<E> stream(Query<?> query, ResultMapper<E> mapper, Object... params) throws SQLException
+    {
+        return this.stream(String.valueOf(query), mapper, params);
+    }
+
+    @Override
+    public <E> Stream<E> stream(CompiledQuery query, ResultMapper<E> mapper, Object... params) throws SQLException
+    {
+        return this.stream(query.getSql(), mapper, params);
+    }
+
+    public <E> Stream<E> stream(String query, ResultMapper<E> mapper, Object... params) throws SQLException
+    {
+        ResultSet resultSet = this.openCursor(query, params);
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<E>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super E> action)
+            {
+                try {
+                    if (!resultSet.next()) {
+                        DatabaseImpl.this.close(resultSet);
+                        return false;
+                    }
+                    action.accept(mapper.map(resultSet));
+                    return true;
+                } catch (RuntimeException | Error exception) {
+                    throw exception;
+                } catch (Throwable throwable) {
+                    throw new IllegalStateException(throwable.getMessage(), throwable);
+                }
+            }
+        }, false).onClose(() -> {
+            try {
+                this.close(resultSet);
+            } catch (SQLException sqlException) {
+                LOGGER.log(Level.SEVERE, sqlException.getMessage(), sqlException);
+            }
+        });
+    }
+
+    /*
+     * A forward only result set streamed by the driver instead of being buffered client side. No other statement
+     * can run on its connection until it is closed, so it is only streamed on a pooled connection of its own: the
+     * shared connection and the connection of a transaction get a buffered result set.
+     */
+    private ResultSet openCursor(String query, Object... params) throws SQLException
+    {
+        Transaction transaction = this.transactions.get();
+        Connection connection = transaction != null ? transaction.connection
+            : this.pool != null ? this.borrow() : this.connection;
+        QueryMetrics metrics = this.metricsOf(query);
+        Lease lease = null;
+        try {
+            PreparedStatement statement = connection.prepareStatement(
+                query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY
+            );
+            lease = new Lease(connection, null, query, statement, transaction != null);
+            if (this.pool != null && transaction == null) {
+                statement.setFetchSize(Integer.MIN_VALUE);
+            }
+            lease.bind(params);
+            long start = this.timed ? System.nanoTime() : 0;
+            ResultSet resultSet = statement.executeQuery();
+            this.record(metrics, query, params, start);
+            if (metrics != null) {
+                resultSet = new MeteredResultSet(resultSet, metrics);
+            }
+            return new LeasedResultSet(resultSet, lease);
+        } catch (SQLException sqlException) {
+            if (metrics != null) {
+                metrics.error();
+            }
+            if (lease != null) {
+                this.release(lease);
+            } else if (this.pool != null && transaction == null) {
+                this.pool.release(connection);
+            }
+            throw sqlException;
+        }
+    }
+
     public void execute(Query<?> query, Object... params) throws SQLException
     {
-        this.execute(String.valueOf(query.build()), params);
+        this.execute(String.valueOf(query.build()), query.getTables(), true, params);
+    }
+
+    @Override
+    public void execute(CompiledQuery query, Object... params) throws SQLException
+    {
+        this.execute(query.getSql(), query.getTables(), true, params);
     }
 
+    // the statement may write any table, every cached result is dropped
     public void execute(String query, Object... params) throws SQLException
     {
-        this.execute(query, true, params);
+        this.execute(query, ANY_TABLE, true, params);
     }
 
-    private void execute(String query, boolean reconnect, Object... params) throws SQLException
+    private void execute(String query, Set<String> tables, boolean reconnect, Object... params) throws SQLException
     {
+        Lease lease = this.lease(query);
+        QueryMetrics metrics = this.metricsOf(query);
+        long start = this.timed ? System.nanoTime() : 0;
         try {
-            PreparedStatement statement = this.connection.prepareStatement(query);
-            for (int i = 0; i < params.length; i++) {
-                statement.setObject(i+1, params[i]);
+            lease.bind(params);
+            int rows = lease.statement.executeUpdate();
+            this.record(metrics, query, params, start);
+            if (metrics != null) {
+                metrics.rows(rows);
             }
-            statement.executeUpdate();
+            this.release(lease);
+            this.invalidate(tables);
         }catch (SQLException sqlException) {
-            if (reconnect) {
-                this.reconnect();
-                this.execute(query, false, params);
+            if (this.retry(lease, metrics, reconnect)) {
+                this.execute(query, tables, false, params);
                 return;
             }
             throw sqlException;
         }
     }
 
+    public List<Object> executeAndGetKeys(Query<?> query, Object... params) throws SQLException
+    {
+        return this.executeAndGetKeys(String.valueOf(query.build()), query.getTables(), true, params);
+    }
+
+    @Override
+    public List<Object> executeAndGetKeys(CompiledQuery query, Object... params) throws SQLException
+    {
+        return this.executeAndGetKeys(query.getSql(), query.getTables(), true, params);
+    }
+
+    public List<Object> executeAndGetKeys(String query, Object... params) throws SQLException
+    {
+        return this.executeAndGetKeys(query, ANY_TABLE, true, params);
+    }
+
+    private List<Object> executeAndGetKeys(String query, Set<String> tables, boolean reconnect, Object... params) throws SQLException
+    {
+        Lease lease = this.lease(query, Statement.RETURN_GENERATED_KEYS);
+        QueryMetrics metrics = this.metricsOf(query);
+        long start = this.timed ? System.nanoTime() : 0;
+        try {
+            lease.bind(params);
+            int rows = lease.statement.executeUpdate();
+            this.record(metrics, query, params, start);
+            if (metrics != null) {
+                metrics.rows(rows);
+            }
+            List<Object> keys = new ArrayList<>();
+            try (ResultSet generatedKeys = lease.statement.getGeneratedKeys()) {
+                while (generatedKeys.next()) {
+                    keys.add(generatedKeys.getObject(1));
+                }
+            }
+            this.release(lease);
+            this.invalidate(tables);
+            return keys;
+        }catch (SQLException sqlException) {
+            if (this.retry(lease, metrics, reconnect)) {
+                return this.executeAndGetKeys(query, tables, false, params);
+            }
+            throw sqlException;
+        }
+    }
+
+    public void executeBatch(Query<?> query, List<Object[]> params) throws SQLException
+    {
+        this.executeBatch(String.valueOf(query.build()), query.getTables(), true, params);
+    }
+
+    @Override
+    public void executeBatch(CompiledQuery query, List<Object[]> params) throws SQLException
+    {
+        this.executeBatch(query.getSql(), query.getTables(), true, params);
+    }
+
+    public void executeBatch(String query, List<Object[]> params) throws SQLException
+    {
+        this.executeBatch(query, ANY_TABLE, true, params);
+    }
+
+    private void executeBatch(String query, Set<String> tables, boolean reconnect, List<Object[]> params) throws SQLException
+    {
+        Lease lease = this.lease(query);
+        QueryMetrics metrics = this.metricsOf(query);
+        long start = this.timed ? System.nanoTime() : 0;
+        try {
+            for (Object[] batch : params) {
+                lease.bind(batch);
+                lease.statement.addBatch();
+            }
+            int[] counts = lease.statement.executeBatch();
+            this.record(metrics, query, params.isEmpty() ? new Object[0] : params.get(0), start);
+            if (metrics != null) {
+                long rows = 0;
+                for (int count : counts) {
+                    // SUCCESS_NO_INFO when the driver rewrote the batch
+                    rows += Math.max(0, count);
+                }
+                metrics.rows(rows);
+            }
+            this.release(lease);
+            this.invalidate(tables);
+        }catch (SQLException sqlException) {
+            try {
+                lease.statement.clearBatch();
+            } catch (SQLException ignored) {
+            }
+            if (this.retry(lease, metrics, reconnect)) {
+                this.executeBatch(query, tables, false, params);
+                return;
+            }
+            throw sqlException;
+        }
+    }
+
+    private void invalidate(Set<String> tables)
+    {
+        if (this.resultCache != null) {
+            this.resultCache.invalidate(tables);
+            Transaction transaction = this.transactions.get();
+            if (transaction != null) {
+                // other threads still read the old rows until the commit
+                transaction.tables.addAll(tables);
+            }
+        }
+    }
+
+    // for the writes sent to these tables through another database, like the primary of this replica
+    void invalidateCachedResults(Set<String> tables)
+    {
+        if (this.resultCache != null) {
+            this.resultCache.invalidate(tables);
+        }
+    }
+
+    // the result sets give their lease back when closed, this is the same as ResultSet#close
     public Database<Connection, ResultSet> close(ResultSet resultSet) throws SQLException
     {
         resultSet.close();
         return this;
     }
-}
\ No newline at end of file
+
+    @Override
+    public <V> CompletableFuture<V> supplyAsync(Callable<V> task)
+    {
+        AsyncExecutor executor = this.asyncExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if ((executor = this.asyncExecutor) == null) {
+                    // no more tasks in flight than connections to run them
+                    this.asyncExecutor = executor = new AsyncExecutor(
+                        this.settings.isPooled() ? this.settings.getMaximumPoolSize() : 1,
+                        this.settings.getAsyncExecutor()
+                    );
+                }
+            }
+        }
+        return executor.submit(task);
+    }
+
+    @Override
+    public <V> V inTransaction(Callable<V> callback) throws Exception
+    {
+        return this.inTransaction(Isolation.DEFAULT, false, callback);
+    }
+
+    @Override
+    public <V> V inTransaction(Isolation isolation, boolean readOnly, Callable<V> callback) throws Exception
+    {
+        this.begin(isolation, readOnly);
+        V value;
+        try {
+            value = callback.call();
+        } catch (Throwable throwable) {
+            try {
+                this.rollback();
+            } catch (SQLException sqlException) {
+                throwable.addSuppressed(sqlException);
+            }
+            throw throwable;
+        }
+        this.commit();
+        return value;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> begin() throws SQLException
+    {
+        return this.begin(Isolation.DEFAULT, false);
+    }
+
+    @Override
+    public Database<Connection, ResultSet> begin(Isolation isolation, boolean readOnly) throws SQLException
+    {
+        Transaction transaction = this.transactions.get();
+        if (transaction != null) {
+            if (transaction.readOnly && !readOnly) {
+                throw new IllegalStateException("Cannot join a read-only transaction with a read-write one.");
+            }
+            transaction.depth++;
+            return this;
+        }
+        // the shared connection would put the statements of every thread in this transaction
+        if (this.pool == null) {
+            throw new IllegalStateException("Transactions need a pooled database, see DatabaseSettings#pool.");
+        }
+        Connection connection = this.borrow();
+        transaction = new Transaction(connection, this.pool.getStatementCache(connection), readOnly);
+        try {
+            transaction.isolation = connection.getTransactionIsolation();
+            if (isolation != Isolation.DEFAULT) {
+                connection.setTransactionIsolation(level(isolation));
+            }
+            // set before the first statement, MySQL then starts a read-only transaction
+            connection.setReadOnly(readOnly);
+            connection.setAutoCommit(false);
+        } catch (SQLException sqlException) {
+            this.end(transaction);
+            throw sqlException;
+        }
+        this.transactions.set(transaction);
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> commit() throws SQLException
+    {
+        Transaction transaction = this.transaction();
+        if (--transaction.depth > 0) {
+            return this;
+        }
+        this.transactions.remove();
+        try {
+            if (transaction.rollbackOnly) {
+                transaction.connection.rollback();
+                throw new SQLException("The transaction was rolled back by a nested transaction.");
+            }
+            transaction.connection.commit();
+        } finally {
+            this.end(transaction);
+        }
+        return this;
+    }
+
+    // a nested rollback only marks the transaction, the outermost one then rolls back instead of committing
+    @Override
+    public Database<Connection, ResultSet> rollback() throws SQLException
+    {
+        Transaction transaction = this.transaction();
+        if (--transaction.depth > 0) {
+            transaction.rollbackOnly = true;
+            return this;
+        }
+        this.transactions.remove();
+        try {
+            transaction.connection.rollback();
+        } finally {
+            this.end(transaction);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isInTransaction()
+    {
+        return this.transactions.get() != null;
+    }
+
+    private Transaction transaction()
+    {
+        Transaction transaction = this.transactions.get();
+        if (transaction == null) {
+            throw new IllegalStateException("No transaction started by this thread.");
+        }
+        return transaction;
+    }
+
+    // puts the connection back in autocommit mode and gives it back to the pool
+    private void end(Transaction transaction) throws SQLException
+    {
+        if (this.resultCache != null && !transaction.tables.isEmpty()) {
+            this.resultCache.invalidate(transaction.tables);
+        }
+        Connection connection = transaction.connection;
+        try {
+            connection.setAutoCommit(true);
+            connection.setReadOnly(false);
+            if (transaction.isolation != connection.getTransactionIsolation()) {
+                connection.setTransactionIsolation(transaction.isolation);
+            }
+        } catch (SQLException sqlException) {
+            if (this.pool != null) {
+                this.pool.invalidate(connection);
+                return;
+            }
+            throw sqlException;
+        }
+        if (this.pool != null) {
+            this.pool.release(connection);
+        }
+    }
+
+    private static int level(Isolation isolation)
+    {
+        switch (isolation) {
+            case READ_UNCOMMITTED:
+                return Connection.TRANSACTION_READ_UNCOMMITTED;
+            case READ_COMMITTED:
+                return Connection.TRANSACTION_READ_COMMITTED;
+            case REPEATABLE_READ:
+                return Connection.TRANSACTION_REPEATABLE_READ;
+            case SERIALIZABLE:
+                return Connection.TRANSACTION_SERIALIZABLE;
+            default:
+                throw new IllegalArgumentException("No level for " + isolation);
+        }
+    }
+
+    /*
+     * start is 0 when the statements are not timed. It runs between the statement and the release of its lease,
+     * so a failing redactor or advisor is logged instead of being thrown through the caller.
+     */
+    private void record(QueryMetrics metrics, String query, Object[] params, long start)
+    {
+        if (start == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.success(elapsed);
+        }
+        try {
+            if (this.slowQueryLog != null) {
+                this.slowQueryLog.check(query, params, elapsed);
+            }
+            if (this.indexAdvisor != null) {
+                this.indexAdvisor.record(query, params, elapsed);
+            }
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.WARNING, "Cannot record " + query + " : " + exception.getMessage(), exception);
+        }
+    }
+
+    private QueryMetrics metricsOf(String query)
+    {
+        return this.metrics != null ? this.metrics.forQuery(query) : null;
+    }
+
+    private Connection borrow() throws SQLException
+    {
+        if (this.metrics == null) {
+            return this.pool.borrow();
+        }
+        long start = System.nanoTime();
+        try {
+            return this.pool.borrow();
+        } finally {
+            this.metrics.poolWait(System.nanoTime() - start);
+        }
+    }
+
+    private Lease lease(String query) throws SQLException
+    {
+        return this.lease(query, Statement.NO_GENERATED_KEYS);
+    }
+
+    private Lease lease(String query, int autoGeneratedKeys) throws SQLException
+    {
+        Transaction transaction = this.transactions.get();
+        if (transaction != null) {
+            return new Lease(
+                transaction.connection, transaction.cache, query,
+                transaction.cache.prepare(transaction.connection, query, autoGeneratedKeys), true
+            );
+        }
+        Connection connection = this.pool != null ? this.borrow() : this.connection;
+        StatementCache cache = this.pool != null ? this.pool.getStatementCache(connection) : this.statementCache;
+        try {
+            return new Lease(connection, cache, query, cache.prepare(connection, query, autoGeneratedKeys), false);
+        } catch (SQLException sqlException) {
+            if (this.pool != null) {
+                this.pool.release(connection);
+            }
+            throw sqlException;
+        }
+    }
+
+    private void release(Lease lease) throws SQLException
+    {
+        try {
+            if (lease.cache != null) {
+                lease.cache.release(lease.query, lease.statement);
+            } else {
+                lease.statement.close();
+            }
+        } finally {
+            if (this.pool != null && !lease.pinned) {
+                this.pool.release(lease.connection);
+            }
+        }
+    }
+
+    // a failed attempt retried on a new connection is not counted, the retry records the call
+    private boolean retry(Lease lease, QueryMetrics metrics, boolean reconnect) throws SQLException
+    {
+        boolean retry = false;
+        try {
+            retry = this.recover(lease) && reconnect;
+        } finally {
+            if (!retry && metrics != null) {
+                metrics.error();
+            }
+        }
+        return retry;
+    }
+
+    // returns true when the failure came from the connection and the query is worth a retry
+    private boolean recover(Lease lease) throws SQLException
+    {
+        if (lease.pinned) {
+            // the work done so far in the transaction is lost with the connection, no retry
+            this.release(lease);
+            return false;
+        }
+        if (this.pool == null) {
+            lease.statement.close();
+            this.reconnect();
+            return true;
+        }
+        boolean valid;
+        try {
+            valid = lease.connection.isValid(1);
+        } catch (SQLException sqlException) {
+            valid = false;
+        }
+        if (valid) {
+            this.release(lease);
+            return false;
+        }
+        LOGGER.log(Level.FINE, "Discarding a broken pooled connection.");
+        this.pool.invalidate(lease.connection);
+        return true;
+    }
+
+    private static final class Lease
+    {
+        private final Connection connection;
+        private final StatementCache cache;
+        private final String query;
+        private final PreparedStatement statement;
+        // the connection belongs to a transaction and stays with it
+        private final boolean pinned;
+
+        private Lease(Connection connection, StatementCache cache, String query, PreparedStatement statement, boolean pinned)
+        {
+            this.connection = connection;
+            this.cache = cache;
+            this.query = query;
+            this.statement = statement;
+            this.pinned = pinned;
+        }
+
+        private void bind(Object... params) throws SQLException
+        {
+            for (int i = 0; i < params.length; i++) {
+                this.statement.setObject(i+1, params[i]);
+            }
+        }
+    }
+
+    // hands the statement and the connection back when closed, by close(ResultSet) or by the caller directly
+    private final class LeasedResultSet extends ForwardingResultSet
+    {
+        private final Lease lease;
+        private boolean closed;
+
+        private LeasedResultSet(ResultSet resultSet, Lease lease)
+        {
+            super(resultSet);
+            this.lease = lease;
+        }
+
+        @Override
+        public void close() throws SQLException
+        {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.resultSet.close();
+            } finally {
+                DatabaseImpl.this.release(this.lease);
+            }
+        }
+    }
+
+    private static final class Transaction
+    {
+        private final Connection connection;
+        private final StatementCache cache;
+        private final boolean readOnly;
+        private int isolation;
+        private int depth = 1;
+        private boolean rollbackOnly;
+        private final Set<String> tables = new HashSet<>();
+
+        private Transaction(Connection connection, StatementCache cache, boolean readOnly)
+        {
+            this.connection = connection;
+            this.cache = cache;
+            this.readOnly = readOnly;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/*
+ * Calls, errors, rows and latency of the queries run by a DatabaseImpl, grouped by SQL fingerprint: the
+ * statement with its literals replaced by '?' and its lists of placeholders collapsed, so the queries
+ * differing only by their values share their numbers. Also times the waits for a pooled connection.
+ */
+public class DatabaseMetrics implements DatabaseMetricsMXBean
+{
+    // distinct SQL strings remembered with their fingerprint, past that they are normalized on every call
+    private static final int MAXIMUM_STATEMENTS = 4096;
+
+    private static final Pattern STRING = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w.$])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    private static final Pattern PLACEHOLDERS = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern ROWS = Pattern.compile("\\(\\?\\+\\)(?:\\s*,\\s*\\(\\?\\+\\))+");
+
+    public static String fingerprint(String sql)
+    {
+        String fingerprint = STRING.matcher(sql).replaceAll("?");
+        fingerprint = NUMBER.matcher(fingerprint).replaceAll("?");
+        fingerprint = SPACES.matcher(fingerprint).replaceAll(" ").trim();
+        fingerprint = PLACEHOLDERS.matcher(fingerprint).replaceAll("(?+)");
+        return ROWS.matcher(fingerprint).replaceAll("(?+)+");
+    }
+
+    private final Map<String, QueryMetrics> statements = new ConcurrentHashMap<>();
+    private final Map<String, QueryMetrics> queries = new ConcurrentHashMap<>();
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    private ObjectName objectName;
+
+    QueryMetrics forQuery(String sql)
+    {
+        QueryMetrics metrics = this.statements.get(sql);
+        if (metrics == null) {
+            metrics = this.queries.computeIfAbsent(fingerprint(sql), QueryMetrics::new);
+            if (this.statements.size() < MAXIMUM_STATEMENTS) {
+                this.statements.put(sql, metrics);
+            }
+        }
+        return metrics;
+    }
+
+    void poolWait(long nanos)
+    {
+        this.poolWait.record(nanos);
+    }
+
+    // null when nothing was recorded for it
+    public QueryMetrics getQuery(String fingerprint)
+    {
+        return this.queries.get(fingerprint);
+    }
+
+    @Override
+    public List<QueryMetrics> getQueries()
+    {
+        return new ArrayList<>(this.queries.values());
+    }
+
+    // the time spent waiting for a pooled connection
+    public LatencyHistogram getPoolWait()
+    {
+        return this.poolWait;
+    }
+
+    @Override
+    public long getCalls()
+    {
+        long calls = 0;
+        for (QueryMetrics metrics : this.queries.values()) {
+            calls += metrics.getCalls();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getErrors()
+    {
+        long errors = 0;
+        for (QueryMetrics metrics : this.queries.values()) {
+            errors += metrics.getErrors();
+        }
+        return errors;
+    }
+
+    @Override
+    public long getRows()
+    {
+        long rows = 0;
+        for (QueryMetrics metrics : this.queries.values()) {
+            rows += metrics.getRows();
+        }
+        return rows;
+    }
+
+    @Override
+    public long getPoolWaitP50Nanos()
+    {
+        return this.poolWait.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getPoolWaitP99Nanos()
+    {
+        return this.poolWait.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getPoolWaitMaxNanos()
+    {
+        return this.poolWait.getMaxNanos();
+    }
+
+    @Override
+    public void reset()
+    {
+        for (QueryMetrics metrics : this.queries.values()) {
+            metrics.reset();
+        }
+        this.poolWait.reset();
+    }
+
+    synchronized void register(String name, Logger logger)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(
+                "fr.neutronstars.database:type=DatabaseMetrics,name=" + ObjectName.quote(name)
+            );
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (InstanceAlreadyExistsException exception) {
+            logger.log(Level.WARNING, "The metrics of another database are already published as " + name + ".");
+        } catch (JMException exception) {
+            logger.log(Level.WARNING, exception.getMessage(), exception);
+        }
+    }
+
+    synchronized void unregister(Logger logger)
+    {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException exception) {
+            logger.log(Level.WARNING, exception.getMessage(), exception);
+        }
+        this.objectName = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DatabaseMetrics{calls=" + this.getCalls() + ", errors=" + this.getErrors() + ", rows=" + this.getRows()
+            + ", poolWait=" + this.poolWait + "}";
+    }
+}
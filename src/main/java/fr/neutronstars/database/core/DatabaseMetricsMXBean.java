@@ -0,0 +1,38 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.List;
+
+// the JMX view of DatabaseMetrics, registered as fr.neutronstars.database:type=DatabaseMetrics,name=<database>@<host>:<port>
+public interface DatabaseMetricsMXBean
+{
+    long getCalls();
+
+    long getErrors();
+
+    long getRows();
+
+    long getPoolWaitP50Nanos();
+
+    long getPoolWaitP99Nanos();
+
+    long getPoolWaitMaxNanos();
+
+    List<QueryMetrics> getQueries();
+
+    void reset();
+}
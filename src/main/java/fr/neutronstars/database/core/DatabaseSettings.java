@@ -0,0 +1,251 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class DatabaseSettings
+{
+    public static DatabaseSettings create()
+    {
+        return new DatabaseSettings();
+    }
+
+    private boolean pooled;
+    private int minimumPoolSize = 1;
+    private int maximumPoolSize = 10;
+    private long borrowTimeout = TimeUnit.SECONDS.toMillis(30);
+    private long idleTimeout = TimeUnit.MINUTES.toMillis(10);
+    private long validationInterval = 500;
+    private long leakDetectionThreshold;
+    private int statementCacheSize = 64;
+    private boolean compiledRowMappers;
+    private boolean upsertPersist;
+    private Executor asyncExecutor;
+    private long resultCacheSize;
+    private boolean metrics;
+    private boolean indexAdvisor;
+    private long slowQueryThreshold;
+    private int slowQueryLogSize = 128;
+    private SlowQueryLog.Redactor slowQueryRedactor;
+
+    protected DatabaseSettings()
+    {
+    }
+
+    public DatabaseSettings pool(int minimumSize, int maximumSize)
+    {
+        if (minimumSize < 0 || maximumSize < 1 || minimumSize > maximumSize) {
+            throw new IllegalArgumentException("Invalid pool size : " + minimumSize + "-" + maximumSize);
+        }
+        this.pooled = true;
+        this.minimumPoolSize = minimumSize;
+        this.maximumPoolSize = maximumSize;
+        return this;
+    }
+
+    public DatabaseSettings borrowTimeout(long timeout, TimeUnit unit)
+    {
+        this.borrowTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    // idle connections above the minimum size are closed after this delay
+    public DatabaseSettings idleTimeout(long timeout, TimeUnit unit)
+    {
+        this.idleTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    // connections idle for longer than this are validated before being lent
+    public DatabaseSettings validationInterval(long interval, TimeUnit unit)
+    {
+        this.validationInterval = unit.toMillis(interval);
+        return this;
+    }
+
+    // 0 disables leak detection
+    public DatabaseSettings leakDetectionThreshold(long threshold, TimeUnit unit)
+    {
+        this.leakDetectionThreshold = unit.toMillis(threshold);
+        return this;
+    }
+
+    // prepared statements kept open per connection, 0 disables the cache
+    public DatabaseSettings statementCacheSize(int size)
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid statement cache size : " + size);
+        }
+        this.statementCacheSize = size;
+        return this;
+    }
+
+    // maps rows through RowMapper instead of reading every column by name, a column missing from the
+    // result set then keeps the default value of its field instead of failing
+    public DatabaseSettings compiledRowMappers(boolean enabled)
+    {
+        this.compiledRowMappers = enabled;
+        return this;
+    }
+
+    // persist with a single INSERT ... ON DUPLICATE KEY UPDATE instead of a lookup then an INSERT or UPDATE
+    public DatabaseSettings upsertPersist(boolean enabled)
+    {
+        this.upsertPersist = enabled;
+        return this;
+    }
+
+    // runs the async API, virtual threads on JDK 21+ or a bounded pool otherwise when not set
+    public DatabaseSettings asyncExecutor(Executor executor)
+    {
+        this.asyncExecutor = executor;
+        return this;
+    }
+
+    // memory budget in bytes of the results kept for the queries marked with Query#cache, 0 disables the cache
+    public DatabaseSettings resultCache(long maximumBytes)
+    {
+        if (maximumBytes < 0) {
+            throw new IllegalArgumentException("Invalid result cache size : " + maximumBytes);
+        }
+        this.resultCacheSize = maximumBytes;
+        return this;
+    }
+
+    // per query latency, error and row counters, also published over JMX
+    public DatabaseSettings metrics(boolean enabled)
+    {
+        this.metrics = enabled;
+        return this;
+    }
+
+    // records the columns the statements look rows up by, to suggest the indexes they lack
+    public DatabaseSettings indexAdvisor(boolean enabled)
+    {
+        this.indexAdvisor = enabled;
+        return this;
+    }
+
+    // statements slower than this are logged and explained, 0 disables the slow query log
+    public DatabaseSettings slowQueryThreshold(long threshold, TimeUnit unit)
+    {
+        this.slowQueryThreshold = unit.toNanos(threshold);
+        return this;
+    }
+
+    // number of samples kept by the slow query log
+    public DatabaseSettings slowQueryLogSize(int size)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid slow query log size : " + size);
+        }
+        this.slowQueryLogSize = size;
+        return this;
+    }
+
+    public DatabaseSettings slowQueryRedactor(SlowQueryLog.Redactor redactor)
+    {
+        this.slowQueryRedactor = redactor;
+        return this;
+    }
+
+    public boolean isPooled()
+    {
+        return this.pooled;
+    }
+
+    public int getMinimumPoolSize()
+    {
+        return this.minimumPoolSize;
+    }
+
+    public int getMaximumPoolSize()
+    {
+        return this.maximumPoolSize;
+    }
+
+    public long getBorrowTimeout()
+    {
+        return this.borrowTimeout;
+    }
+
+    public long getIdleTimeout()
+    {
+        return this.idleTimeout;
+    }
+
+    public long getValidationInterval()
+    {
+        return this.validationInterval;
+    }
+
+    public long getLeakDetectionThreshold()
+    {
+        return this.leakDetectionThreshold;
+    }
+
+    public int getStatementCacheSize()
+    {
+        return this.statementCacheSize;
+    }
+
+    public boolean isCompiledRowMappers()
+    {
+        return this.compiledRowMappers;
+    }
+
+    public boolean isUpsertPersist()
+    {
+        return this.upsertPersist;
+    }
+
+    public Executor getAsyncExecutor()
+    {
+        return this.asyncExecutor;
+    }
+
+    public long getResultCacheSize()
+    {
+        return this.resultCacheSize;
+    }
+
+    public boolean isMetrics()
+    {
+        return this.metrics;
+    }
+
+    public boolean isIndexAdvisor()
+    {
+        return this.indexAdvisor;
+    }
+
+    public long getSlowQueryThreshold()
+    {
+        return this.slowQueryThreshold;
+    }
+
+    public int getSlowQueryLogSize()
+    {
+        return this.slowQueryLogSize;
+    }
+
+    public SlowQueryLog.Redactor getSlowQueryRedactor()
+    {
+        return this.slowQueryRedactor;
+    }
+}
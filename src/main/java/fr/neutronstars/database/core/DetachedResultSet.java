@@ -0,0 +1,440 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Immutable copy of a result set, detached from its connection. Every open() gives a read-only,
+ * scrollable view with its own cursor, so one copy can be handed to any number of readers.
+ */
+final class DetachedResultSet
+{
+    private static final int ROW_OVERHEAD = 32;
+    private static final int VALUE_OVERHEAD = 16;
+
+    static DetachedResultSet capture(ResultSet resultSet) throws SQLException
+    {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int count = metaData.getColumnCount();
+        String[] labels = new String[count];
+        String[] names = new String[count];
+        int[] types = new int[count];
+        String[] typeNames = new String[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+            names[i] = metaData.getColumnName(i + 1);
+            types[i] = metaData.getColumnType(i + 1);
+            typeNames[i] = metaData.getColumnTypeName(i + 1);
+        }
+        List<Object[]> rows = new ArrayList<>();
+        long size = 0;
+        while (resultSet.next()) {
+            Object[] row = new Object[count];
+            size += ROW_OVERHEAD;
+            for (int i = 0; i < count; i++) {
+                row[i] = resultSet.getObject(i + 1);
+                size += VALUE_OVERHEAD + sizeOf(row[i]);
+            }
+            rows.add(row);
+        }
+        return new DetachedResultSet(labels, names, types, typeNames, Collections.unmodifiableList(rows), size);
+    }
+
+    /*
+     * The rows of several results with the same columns, as if one query had returned them: each part must already
+     * be sorted by the given labels, they are merged in order and the offset and limit (-1 for none) are applied
+     * to the merged rows.
+     */
+    static DetachedResultSet merge(List<DetachedResultSet> parts, String[] orderLabels, boolean[] descending, int offset, int limit)
+        throws SQLException
+    {
+        DetachedResultSet first = parts.get(0);
+        int[] columns = new int[orderLabels.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = first.findColumn(orderLabels[i]) - 1;
+        }
+        Comparator<Object[]> comparator = (left, right) -> {
+            for (int i = 0; i < columns.length; i++) {
+                int comparison = compare(left[columns[i]], right[columns[i]]);
+                if (comparison != 0) {
+                    return descending[i] ? -comparison : comparison;
+                }
+            }
+            return 0;
+        };
+        // the head row of every part, the smallest one is taken next
+        PriorityQueue<int[]> heads = new PriorityQueue<>((left, right) -> {
+            int comparison = comparator.compare(parts.get(left[0]).rows.get(left[1]), parts.get(right[0]).rows.get(right[1]));
+            return comparison != 0 ? comparison : Integer.compare(left[0], right[0]);
+        });
+        long size = 0;
+        int total = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            DetachedResultSet part = parts.get(i);
+            size += part.size;
+            total += part.rows.size();
+            if (!part.rows.isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        int end = limit < 0 ? total : (int) Math.min(total, (long) offset + limit);
+        List<Object[]> rows = new ArrayList<>(Math.max(0, end - offset));
+        for (int index = 0; index < end && !heads.isEmpty(); index++) {
+            int[] head = heads.poll();
+            List<Object[]> partRows = parts.get(head[0]).rows;
+            if (index >= offset) {
+                rows.add(partRows.get(head[1]));
+            }
+            if (++head[1] < partRows.size()) {
+                heads.add(head);
+            }
+        }
+        return new DetachedResultSet(first.labels, first.names, first.types, first.typeNames, Collections.unmodifiableList(rows), size);
+    }
+
+    // NULL first like MySQL, strings compared without case like the default collations
+    @SuppressWarnings("unchecked")
+    private static int compare(Object left, Object right)
+    {
+        if (left == null || right == null) {
+            return left == null ? (right == null ? 0 : -1) : 1;
+        }
+        if (left instanceof String && right instanceof String) {
+            return String.CASE_INSENSITIVE_ORDER.compare((String) left, (String) right);
+        }
+        if (left instanceof Number && right instanceof Number && left.getClass() != right.getClass()) {
+            return new BigDecimal(left.toString()).compareTo(new BigDecimal(right.toString()));
+        }
+        if (left instanceof Comparable && left.getClass() == right.getClass()) {
+            return ((Comparable<Object>) left).compareTo(right);
+        }
+        return String.valueOf(left).compareTo(String.valueOf(right));
+    }
+
+    private static long sizeOf(Object value)
+    {
+        if (value instanceof String) {
+            return 2L * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return value == null ? 0 : 8;
+    }
+
+    private final String[] labels;
+    private final String[] names;
+    private final int[] types;
+    private final String[] typeNames;
+    private final List<Object[]> rows;
+    private final long size;
+    private final ResultSetMetaData metaData;
+
+    private DetachedResultSet(String[] labels, String[] names, int[] types, String[] typeNames, List<Object[]> rows, long size)
+    {
+        this.labels = labels;
+        this.names = names;
+        this.types = types;
+        this.typeNames = typeNames;
+        this.rows = rows;
+        this.size = size;
+        this.metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+            DetachedResultSet.class.getClassLoader(),
+            new Class<?>[]{ResultSetMetaData.class},
+            (proxy, method, args) -> this.describe(method, args)
+        );
+    }
+
+    // rough number of bytes held by the rows
+    long size()
+    {
+        return this.size;
+    }
+
+    ResultSet open()
+    {
+        Cursor cursor = new Cursor();
+        return (ResultSet) Proxy.newProxyInstance(
+            DetachedResultSet.class.getClassLoader(),
+            new Class<?>[]{ResultSet.class},
+            (proxy, method, args) -> cursor.invoke(proxy, method, args)
+        );
+    }
+
+    private int findColumn(String label) throws SQLException
+    {
+        for (int i = 0; i < this.labels.length; i++) {
+            if (this.labels[i].equalsIgnoreCase(label)) {
+                return i + 1;
+            }
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            if (this.names[i].equalsIgnoreCase(label)) {
+                return i + 1;
+            }
+        }
+        throw new SQLException("Column '" + label + "' not found.");
+    }
+
+    private Object describe(Method method, Object[] args) throws SQLException
+    {
+        switch (method.getName()) {
+            case "getColumnCount":
+                return this.labels.length;
+            case "getColumnLabel":
+                return this.labels[(int) args[0] - 1];
+            case "getColumnName":
+                return this.names[(int) args[0] - 1];
+            case "getColumnType":
+                return this.types[(int) args[0] - 1];
+            case "getColumnTypeName":
+                return this.typeNames[(int) args[0] - 1];
+            case "isReadOnly":
+                return true;
+            case "isWrapperFor":
+                return false;
+            case "toString":
+                return "DetachedResultSetMetaData" + Arrays.toString(this.labels);
+            case "hashCode":
+                return System.identityHashCode(this);
+            case "equals":
+                return args[0] == this.metaData;
+            default:
+                throw new SQLFeatureNotSupportedException(method.getName() + " is not supported by a cached result.");
+        }
+    }
+
+    private final class Cursor
+    {
+        private int row = -1;
+        private boolean wasNull;
+        private boolean closed;
+
+        private Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+        {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    this.closed = true;
+                    return null;
+                case "isClosed":
+                    return this.closed;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "DetachedResultSet@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            if (this.closed) {
+                throw new SQLException("The result set is closed.");
+            }
+            int size = DetachedResultSet.this.rows.size();
+            switch (name) {
+                case "next":
+                    this.row = Math.min(this.row + 1, size);
+                    return this.row < size;
+                case "previous":
+                    this.row = Math.max(this.row - 1, -1);
+                    return this.row >= 0;
+                case "first":
+                    this.row = 0;
+                    return size > 0;
+                case "last":
+                    this.row = size - 1;
+                    return size > 0;
+                case "beforeFirst":
+                    this.row = -1;
+                    return null;
+                case "afterLast":
+                    this.row = size;
+                    return null;
+                case "absolute":
+                    int target = (int) args[0];
+                    this.row = Math.max(-1, Math.min(size, target >= 0 ? target - 1 : size + target));
+                    return this.row >= 0 && this.row < size;
+                case "getRow":
+                    return this.row >= 0 && this.row < size ? this.row + 1 : 0;
+                case "isBeforeFirst":
+                    return this.row == -1 && size > 0;
+                case "isAfterLast":
+                    return this.row >= size && size > 0;
+                case "isFirst":
+                    return this.row == 0 && size > 0;
+                case "isLast":
+                    return this.row == size - 1 && size > 0;
+                case "wasNull":
+                    return this.wasNull;
+                case "findColumn":
+                    return DetachedResultSet.this.findColumn((String) args[0]);
+                case "getMetaData":
+                    return DetachedResultSet.this.metaData;
+                case "getType":
+                    return ResultSet.TYPE_SCROLL_INSENSITIVE;
+                case "getConcurrency":
+                    return ResultSet.CONCUR_READ_ONLY;
+                case "getFetchSize":
+                    return size;
+                case "setFetchSize":
+                case "setFetchDirection":
+                case "clearWarnings":
+                    return null;
+                case "getFetchDirection":
+                    return ResultSet.FETCH_FORWARD;
+                case "getWarnings":
+                case "getStatement":
+                    return null;
+                case "isWrapperFor":
+                    return false;
+            }
+            if (name.startsWith("get") && args != null && args.length >= 1) {
+                int column = args[0] instanceof String
+                    ? DetachedResultSet.this.findColumn((String) args[0])
+                    : (int) args[0];
+                if (this.row < 0 || this.row >= size) {
+                    throw new SQLException("The cursor is not on a row.");
+                }
+                if (column < 1 || column > DetachedResultSet.this.labels.length) {
+                    throw new SQLException("Invalid column index : " + column);
+                }
+                Object value = DetachedResultSet.this.rows.get(this.row)[column - 1];
+                this.wasNull = value == null;
+                Class<?> type = name.equals("getObject") && args.length == 2 && args[1] instanceof Class
+                    ? (Class<?>) args[1]
+                    : method.getReturnType();
+                return convert(value, type);
+            }
+            throw new SQLFeatureNotSupportedException(name + " is not supported by a cached result.");
+        }
+    }
+
+    private static Object convert(Object value, Class<?> type) throws SQLException
+    {
+        if (value == null) {
+            if (!type.isPrimitive()) {
+                return null;
+            }
+            return type == boolean.class ? Boolean.FALSE : convert(0, type);
+        }
+        if (type == Object.class || type.isInstance(value)) {
+            // the rows are shared between readers, mutable values are copied
+            if (value instanceof byte[]) {
+                return ((byte[]) value).clone();
+            }
+            if (value instanceof java.util.Date) {
+                return ((java.util.Date) value).clone();
+            }
+            return value;
+        }
+        if (type == String.class) {
+            return String.valueOf(value);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            Number number = value instanceof Boolean ? (((Boolean) value) ? 1 : 0) : (Number) value;
+            if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            }
+            if (type == long.class || type == Long.class) {
+                return number.longValue();
+            }
+            if (type == double.class || type == Double.class) {
+                return number.doubleValue();
+            }
+            if (type == float.class || type == Float.class) {
+                return number.floatValue();
+            }
+            if (type == short.class || type == Short.class) {
+                return number.shortValue();
+            }
+            if (type == byte.class || type == Byte.class) {
+                return number.byteValue();
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return number.intValue() != 0;
+            }
+            if (type == BigDecimal.class) {
+                return new BigDecimal(number.toString());
+            }
+            if (type == BigInteger.class) {
+                return new BigInteger(number.toString());
+            }
+        }
+        if (value instanceof String) {
+            String text = (String) value;
+            try {
+                if (type == int.class || type == Integer.class) {
+                    return Integer.parseInt(text);
+                }
+                if (type == long.class || type == Long.class) {
+                    return Long.parseLong(text);
+                }
+                if (type == double.class || type == Double.class) {
+                    return Double.parseDouble(text);
+                }
+                if (type == BigDecimal.class) {
+                    return new BigDecimal(text);
+                }
+                if (type == boolean.class || type == Boolean.class) {
+                    return text.equals("1") || text.equalsIgnoreCase("true");
+                }
+            } catch (NumberFormatException exception) {
+                throw new SQLException("Cannot convert '" + text + "' to " + type.getSimpleName(), exception);
+            }
+        }
+        if (type == Timestamp.class && value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value);
+        }
+        if (type == LocalDateTime.class && value instanceof Timestamp) {
+            return ((Timestamp) value).toLocalDateTime();
+        }
+        if (type == Date.class && value instanceof LocalDate) {
+            return Date.valueOf((LocalDate) value);
+        }
+        if (type == LocalDate.class && value instanceof Date) {
+            return ((Date) value).toLocalDate();
+        }
+        if (type == Time.class && value instanceof LocalTime) {
+            return Time.valueOf((LocalTime) value);
+        }
+        if (type == LocalTime.class && value instanceof Time) {
+            return ((Time) value).toLocalTime();
+        }
+        if (type == byte[].class && value instanceof String) {
+            return ((String) value).getBytes();
+        }
+        throw new SQLException("Cannot convert " + value.getClass().getSimpleName() + " to " + type.getSimpleName());
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Lazy;
+import fr.neutronstars.database.api.annotation.Column;
+import fr.neutronstars.database.api.annotation.Table;
+import fr.neutronstars.database.api.exception.MissingAnnotationException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// everything the repositories need to know about an entity class, computed once per class
+public final class EntityMetadata<T>
+{
+    private static final Map<Class<?>, EntityMetadata<?>> REGISTRY = new ConcurrentHashMap<>();
+
+    // the registry maps each class to its own metadata
+    @SuppressWarnings("unchecked")
+    public static <T> EntityMetadata<T> of(Class<T> type) throws MissingAnnotationException
+    {
+        EntityMetadata<?> metadata = REGISTRY.get(type);
+        if (metadata == null) {
+            if (!type.isAnnotationPresent(Table.class)) {
+                throw new MissingAnnotationException("Missing @Table annotation to " + type.getName() + " class !");
+            }
+            metadata = REGISTRY.computeIfAbsent(type, EntityMetadata::new);
+        }
+        return (EntityMetadata<T>) metadata;
+    }
+
+    // a class only read from rows, like a projection, its @Column fields are mapped without a @Table
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetadata<T> ofColumns(Class<T> type)
+    {
+        return (EntityMetadata<T>) REGISTRY.computeIfAbsent(type, EntityMetadata::new);
+    }
+
+    private final Class<T> type;
+    private final String tableName;
+    private final MethodHandle constructor;
+    private final List<ColumnMetadata> columns;
+    private final List<ColumnMetadata> primaryKeys;
+    private final List<ColumnMetadata> insertableColumns;
+    private final List<ColumnMetadata> updatableColumns;
+    private final ColumnMetadata autoIncrementColumn;
+    private final ColumnMetadata shardKey;
+    private final List<ColumnMetadata> lazyColumns;
+    private final String[] selectColumns;
+    private final String primaryKeyCondition;
+    private final String updateAssignments;
+    private final String upsertAssignments;
+    private final Map<String, RowMapper<T>> rowMappers = new ConcurrentHashMap<>();
+
+    private EntityMetadata(Class<T> type)
+    {
+        this.type = type;
+        Table table = type.getAnnotation(Table.class);
+        this.tableName = table == null ? null : table.name().isEmpty() ? type.getName().toLowerCase() : table.name();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+
+            List<ColumnMetadata> columns = new ArrayList<>();
+            List<ColumnMetadata> primaryKeys = new ArrayList<>();
+            List<ColumnMetadata> insertableColumns = new ArrayList<>();
+            List<ColumnMetadata> updatableColumns = new ArrayList<>();
+            ColumnMetadata autoIncrementColumn = null;
+            ColumnMetadata shardKey = null;
+            List<ColumnMetadata> lazyColumns = new ArrayList<>();
+            for (Field field : type.getDeclaredFields()) {
+                if (!field.isAnnotationPresent(Column.class) || Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                ColumnMetadata column = new ColumnMetadata(lookup, field, columns.size());
+                columns.add(column);
+                if (column.isPrimaryKey()) {
+                    primaryKeys.add(column);
+                } else {
+                    updatableColumns.add(column);
+                }
+                if (column.isLazy()) {
+                    if (column.isPrimaryKey() || column.getColumn().shardKey()) {
+                        throw new IllegalArgumentException("The key " + column.getName() + " of " + type.getName() + " class cannot be lazy !");
+                    }
+                    lazyColumns.add(column);
+                }
+                if (column.getColumn().shardKey()) {
+                    if (shardKey != null) {
+                        throw new IllegalArgumentException("More than one shard key declared on " + type.getName() + " class !");
+                    }
+                    shardKey = column;
+                }
+                if (column.isPrimaryKey() && column.isAutoIncrement()) {
+                    autoIncrementColumn = column;
+                } else {
+                    insertableColumns.add(column);
+                }
+            }
+            this.columns = Collections.unmodifiableList(columns);
+            this.primaryKeys = Collections.unmodifiableList(primaryKeys);
+            this.insertableColumns = Collections.unmodifiableList(insertableColumns);
+            this.updatableColumns = Collections.unmodifiableList(updatableColumns);
+            this.autoIncrementColumn = autoIncrementColumn;
+            this.shardKey = shardKey != null ? shardKey : primaryKeys.size() == 1 ? primaryKeys.get(0) : null;
+            this.lazyColumns = Collections.unmodifiableList(lazyColumns);
+            if (!lazyColumns.isEmpty() && primaryKeys.isEmpty() && this.tableName != null) {
+                throw new IllegalArgumentException("Lazy columns need a primary key on " + type.getName() + " class !");
+            }
+            List<String> selectColumns = new ArrayList<>();
+            for (ColumnMetadata column : columns) {
+                if (!column.isLazy()) {
+                    selectColumns.add(column.getName());
+                }
+            }
+            this.selectColumns = lazyColumns.isEmpty() ? new String[]{"*"} : selectColumns.toArray(new String[0]);
+        } catch (ReflectiveOperationException exception) {
+            throw new IllegalArgumentException("Cannot access the columns of " + type.getName() + " class !", exception);
+        }
+        this.primaryKeyCondition = join(this.primaryKeys, " AND ");
+        this.updateAssignments = getUpdateAssignments(this.updatableColumns);
+        this.upsertAssignments = this.getUpsertAssignments(this.updatableColumns);
+    }
+
+    // "a=?,b=?" for the given columns
+    static String getUpdateAssignments(List<ColumnMetadata> columns)
+    {
+        return join(columns, ",");
+    }
+
+    // the ON DUPLICATE KEY UPDATE of an upsert only writing the given columns
+    String getUpsertAssignments(List<ColumnMetadata> updatableColumns)
+    {
+        StringBuilder upsert = new StringBuilder();
+        for (ColumnMetadata column : updatableColumns) {
+            upsert.append(upsert.length() == 0 ? "" : ",")
+                .append(column.getName()).append("=VALUES(").append(column.getName()).append(')');
+        }
+        if (this.autoIncrementColumn != null) {
+            // makes the generated key of an updated row the existing one
+            String key = this.autoIncrementColumn.getName();
+            upsert.append(upsert.length() == 0 ? "" : ",").append(key).append("=LAST_INSERT_ID(").append(key).append(')');
+        } else if (upsert.length() == 0 && !this.primaryKeys.isEmpty()) {
+            String key = this.primaryKeys.get(0).getName();
+            upsert.append(key).append('=').append(key);
+        }
+        return upsert.toString();
+    }
+
+    private static String join(List<ColumnMetadata> columns, String separator)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (ColumnMetadata column : columns) {
+            if (builder.length() != 0) {
+                builder.append(separator);
+            }
+            builder.append(column.getName()).append("=?");
+        }
+        return builder.toString();
+    }
+
+    public Class<T> getType()
+    {
+        return this.type;
+    }
+
+    public String getTableName()
+    {
+        return this.tableName;
+    }
+
+    public List<ColumnMetadata> getColumns()
+    {
+        return this.columns;
+    }
+
+    public List<ColumnMetadata> getPrimaryKeys()
+    {
+        return this.primaryKeys;
+    }
+
+    // every column but the auto increment primary key
+    public List<ColumnMetadata> getInsertableColumns()
+    {
+        return this.insertableColumns;
+    }
+
+    // every column but the primary keys
+    public List<ColumnMetadata> getUpdatableColumns()
+    {
+        return this.updatableColumns;
+    }
+
+    public ColumnMetadata getAutoIncrementColumn()
+    {
+        return this.autoIncrementColumn;
+    }
+
+    public boolean hasAutoIncrement()
+    {
+        return this.autoIncrementColumn != null;
+    }
+
+    public List<ColumnMetadata> getLazyColumns()
+    {
+        return this.lazyColumns;
+    }
+
+    public boolean hasLazyColumns()
+    {
+        return !this.lazyColumns.isEmpty();
+    }
+
+    // what the entity is read with, every column but the lazy ones
+    public String[] getSelectColumns()
+    {
+        return this.selectColumns.clone();
+    }
+
+    // the declared shard key, else the primary key when there is only one, else null
+    public ColumnMetadata getShardKey()
+    {
+        return this.shardKey;
+    }
+
+    public ColumnMetadata getColumn(String name)
+    {
+        for (ColumnMetadata column : this.columns) {
+            if (column.getName().equalsIgnoreCase(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    // "a=? AND b=?" over the primary keys
+    public String getPrimaryKeyCondition()
+    {
+        return this.primaryKeyCondition;
+    }
+
+    // "a=?,b=?" over the updatable columns
+    public String getUpdateAssignments()
+    {
+        return this.updateAssignments;
+    }
+
+    // the ON DUPLICATE KEY UPDATE part of an upsert
+    public String getUpsertAssignments()
+    {
+        return this.upsertAssignments;
+    }
+
+    // one mapper per distinct list of result set columns
+    public RowMapper<T> getRowMapper(ResultSetMetaData resultSetMetaData) throws SQLException
+    {
+        StringBuilder shape = new StringBuilder();
+        for (int i = 1; i <= resultSetMetaData.getColumnCount(); i++) {
+            shape.append(resultSetMetaData.getColumnLabel(i).toLowerCase()).append(',');
+        }
+        String key = shape.toString();
+        RowMapper<T> mapper = this.rowMappers.get(key);
+        if (mapper == null) {
+            mapper = this.rowMappers.computeIfAbsent(key, ignored -> RowMapper.compile(this, key.split(",")));
+        }
+        return mapper;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T newInstance() throws Throwable
+    {
+        return (T) (Object) this.constructor.invokeExact();
+    }
+
+    public static final class ColumnMetadata
+    {
+        private final Field field;
+        private final Column column;
+        private final String name;
+        private final int index;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private final MethodHandle typedSetter;
+        private final Class<?> valueType;
+
+        private ColumnMetadata(MethodHandles.Lookup lookup, Field field, int index) throws IllegalAccessException
+        {
+            this.field = field;
+            this.column = field.getAnnotation(Column.class);
+            if (this.column.lazy() != (field.getType() == Lazy.class)) {
+                throw new IllegalArgumentException("The field " + field.getName() + " must be a Lazy exactly when its column is lazy !");
+            }
+            this.valueType = this.column.lazy() ? lazyType(field) : field.getType();
+            this.name = this.column.name().isEmpty() ? field.getName().toLowerCase() : this.column.name();
+            this.index = index;
+            this.getter = lookup.unreflectGetter(field)
+                .asType(MethodType.methodType(Object.class, Object.class));
+            this.typedSetter = lookup.unreflectSetter(field)
+                .asType(MethodType.methodType(void.class, Object.class, field.getType()));
+            this.setter = this.typedSetter
+                .asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+
+        // the V of a Lazy<V> field, Object when it cannot be told
+        private static Class<?> lazyType(Field field)
+        {
+            Type type = field.getGenericType();
+            if (type instanceof ParameterizedType) {
+                Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+                if (argument instanceof Class) {
+                    return (Class<?>) argument;
+                }
+                if (argument instanceof GenericArrayType && ((GenericArrayType) argument).getGenericComponentType() == byte.class) {
+                    return byte[].class;
+                }
+            }
+            return Object.class;
+        }
+
+        public Field getField()
+        {
+            return this.field;
+        }
+
+        public Class<?> getJavaType()
+        {
+            return this.field.getType();
+        }
+
+        // the type of the column values, the field type but for a Lazy
+        public Class<?> getValueType()
+        {
+            return this.valueType;
+        }
+
+        public boolean isLazy()
+        {
+            return this.column.lazy();
+        }
+
+        public Column getColumn()
+        {
+            return this.column;
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        // position of the column in EntityMetadata#getColumns()
+        public int getIndex()
+        {
+            return this.index;
+        }
+
+        public boolean isPrimaryKey()
+        {
+            return this.column.key() == Column.Key.PRIMARY;
+        }
+
+        public boolean isAutoIncrement()
+        {
+            return this.column.autoIncrement();
+        }
+
+        public Object get(Object instance) throws Throwable
+        {
+            return (Object) this.getter.invokeExact(instance);
+        }
+
+        public void set(Object instance, Object value) throws Throwable
+        {
+            this.setter.invokeExact(instance, value);
+        }
+
+        // (Object, field type) -> void, stores without boxing
+        MethodHandle getTypedSetter()
+        {
+            return this.typedSetter;
+        }
+    }
+}
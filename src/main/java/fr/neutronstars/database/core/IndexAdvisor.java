@@ -0,0 +1,753 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.annotation.Column;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Watches the statements run by a DatabaseImpl and works out, for each table they read, the columns an index
+ * would need: those compared with = or IN first, then one range column or the ORDER BY columns. The candidates
+ * are counted and timed as the statements run, the report then drops those already served by an index, asks
+ * EXPLAIN about the others and ranks them by the time they cost.
+ *
+ * Conditions joined by OR or wrapped in functions cannot use a plain index and are not counted, nor are
+ * statements with a nested SELECT or a UNION.
+ */
+public final class IndexAdvisor
+{
+    // beyond this many distinct statements the new ones are not analysed
+    private static final int MAXIMUM_STATEMENTS = 4096;
+    // beyond this many candidate indexes the new ones are not counted
+    private static final int MAXIMUM_CANDIDATES = 1024;
+    private static final Candidate[] NONE = new Candidate[0];
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+        "WHERE", "JOIN", "LEFT", "RIGHT", "INNER", "OUTER", "CROSS", "NATURAL", "FULL", "STRAIGHT_JOIN", "ON", "USING",
+        "GROUP", "ORDER", "LIMIT", "HAVING", "SET", "UNION", "AS", "FOR", "AND", "OR", "NOT", "IN", "IS", "LIKE",
+        "BETWEEN", "NULL", "ASC", "DESC", "BY", "SELECT", "FROM", "UPDATE", "DELETE", "LOW_PRIORITY", "IGNORE", "QUICK"
+    ));
+
+    // the report runs on a connection of its own, its lookups are not part of the workload and cannot break the database
+    private final ConnectionPool.Factory factory;
+    private final Map<String, Candidate[]> statements = new ConcurrentHashMap<>();
+    private final Map<String, Candidate> candidates = new ConcurrentHashMap<>();
+
+    IndexAdvisor(ConnectionPool.Factory factory)
+    {
+        this.factory = factory;
+    }
+
+    void record(String sql, Object[] params, long nanos)
+    {
+        Candidate[] candidates = this.statements.get(sql);
+        if (candidates == null) {
+            // with literals inlined in the SQL every call may be new, parsing them all would slow every query
+            if (this.statements.size() >= MAXIMUM_STATEMENTS) {
+                return;
+            }
+            candidates = this.analyse(sql);
+            this.statements.put(sql, candidates);
+        }
+        for (Candidate candidate : candidates) {
+            candidate.record(sql, params, nanos);
+        }
+    }
+
+    private Candidate[] analyse(String sql)
+    {
+        Map<String, Access> accesses = parse(sql);
+        if (accesses == null || accesses.isEmpty()) {
+            return NONE;
+        }
+        List<Candidate> list = new ArrayList<>(accesses.size());
+        for (Map.Entry<String, Access> entry : accesses.entrySet()) {
+            List<String> columns = entry.getValue().columns();
+            int equalities = entry.getValue().equality.size();
+            String key = entry.getKey() + columns + equalities;
+            Candidate candidate = this.candidates.get(key);
+            if (candidate == null) {
+                if (this.candidates.size() >= MAXIMUM_CANDIDATES) {
+                    continue;
+                }
+                candidate = this.candidates.computeIfAbsent(key, ignored -> new Candidate(entry.getKey(), columns, equalities));
+            }
+            list.add(candidate);
+        }
+        return list.toArray(NONE);
+    }
+
+    public void clear()
+    {
+        this.statements.clear();
+        this.candidates.clear();
+    }
+
+    /*
+     * The indexes worth adding, the most beneficial first, and among the plain indexes declared by the given
+     * entities those nothing reads. The usage of the indexes comes from performance_schema when it is enabled,
+     * else from the statements seen since the start.
+     */
+    public Report report(Class<?>... types) throws Exception
+    {
+        try (Connection connection = this.factory.open()) {
+            return this.report(connection, types);
+        }
+    }
+
+    private Report report(Connection connection, Class<?>... types) throws Exception
+    {
+        Map<String, List<SchemaSync.IndexDefinition>> indexes = new HashMap<>();
+        List<Suggestion> suggestions = new ArrayList<>();
+        for (Candidate candidate : this.candidates.values()) {
+            if (candidate.calls.sum() == 0) {
+                continue;
+            }
+            List<SchemaSync.IndexDefinition> existing = indexes.get(candidate.table);
+            if (existing == null) {
+                try (PreparedStatement statement = prepare(connection, SchemaSync.INDEXES_QUERY, candidate.table);
+                     ResultSet resultSet = statement.executeQuery()) {
+                    indexes.put(candidate.table, existing = SchemaSync.readIndexes(resultSet));
+                }
+            }
+            if (!candidate.isServedBy(existing)) {
+                suggestions.add(suggest(connection, candidate));
+            }
+        }
+        suggestions.sort((left, right) -> Long.compare(right.getEstimatedBenefitNanos(), left.getEstimatedBenefitNanos()));
+
+        List<String> unused = new ArrayList<>();
+        for (Class<?> type : types) {
+            EntityMetadata<?> metadata = EntityMetadata.of(type);
+            Set<String> idle = readIdleIndexes(connection, metadata.getTableName());
+            for (SchemaSync.IndexDefinition index : SchemaSync.declaredIndexes(metadata)) {
+                // unique keys are constraints, they are not dropped for being unread
+                if (index.key == Column.Key.PRIMARY || index.key == Column.Key.UNIQUE) {
+                    continue;
+                }
+                boolean used = idle != null
+                    ? !idle.contains(index.name.toLowerCase(Locale.ROOT))
+                    : this.isLeadingColumnRead(metadata.getTableName(), index.columns.get(0));
+                if (!used) {
+                    unused.add(metadata.getTableName() + "." + index.name);
+                }
+            }
+        }
+        return new Report(suggestions, unused);
+    }
+
+    private static Suggestion suggest(Connection connection, Candidate candidate)
+    {
+        String type = null;
+        String key = null;
+        long rows = -1;
+        String sql;
+        Object[] params;
+        synchronized (candidate) {
+            sql = candidate.sampleSql;
+            params = candidate.sampleParams;
+        }
+        try (PreparedStatement statement = prepare(connection, "EXPLAIN " + sql, params);
+             ResultSet resultSet = statement.executeQuery()) {
+            // a join gives one row per table, named by its alias when it has one
+            int count = 0;
+            while (resultSet.next()) {
+                boolean found = candidate.table.equalsIgnoreCase(resultSet.getString("table"));
+                if (found || count++ == 0) {
+                    type = resultSet.getString("type");
+                    key = resultSet.getString("key");
+                    rows = resultSet.getLong("rows");
+                }
+                if (found) {
+                    count = 1;
+                    break;
+                }
+            }
+            if (count != 1) {
+                type = null;
+                key = null;
+                rows = -1;
+            }
+        } catch (SQLException sqlException) {
+            // the estimate then goes without it
+        }
+        long nanos = candidate.nanos.sum();
+        // a full scan costs about all of the time, a partly matching index about half of it
+        double share = type == null ? 0.5 : key == null || "ALL".equals(type) || "index".equals(type) ? 0.9 : 0.5;
+        SchemaSync.IndexDefinition index = new SchemaSync.IndexDefinition(
+            SchemaSync.defaultName(Column.Key.INDEX, candidate.columns), Column.Key.INDEX, candidate.columns
+        );
+        return new Suggestion(candidate.table, candidate.columns, candidate.calls.sum(), nanos, type, key, rows,
+            (long) (nanos * share), "ALTER TABLE `" + candidate.table + "` ADD " + index.definition() + ", ALGORITHM=INPLACE, LOCK=NONE");
+    }
+
+    // null when performance_schema cannot tell
+    private static Set<String> readIdleIndexes(Connection connection, String table)
+    {
+        try (PreparedStatement statement = prepare(connection,
+                 "SELECT INDEX_NAME FROM performance_schema.table_io_waits_summary_by_index_usage"
+                     + " WHERE OBJECT_SCHEMA = DATABASE() AND OBJECT_NAME = ? AND INDEX_NAME IS NOT NULL AND COUNT_STAR = 0",
+                 table);
+             ResultSet resultSet = statement.executeQuery()) {
+            Set<String> idle = new HashSet<>();
+            while (resultSet.next()) {
+                idle.add(resultSet.getString(1).toLowerCase(Locale.ROOT));
+            }
+            return idle;
+        } catch (SQLException sqlException) {
+            // performance_schema disabled or not granted
+            return null;
+        }
+    }
+
+    private static PreparedStatement prepare(Connection connection, String sql, Object... params) throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+        } catch (SQLException sqlException) {
+            statement.close();
+            throw sqlException;
+        }
+        return statement;
+    }
+
+    private boolean isLeadingColumnRead(String table, String column)
+    {
+        for (Candidate candidate : this.candidates.values()) {
+            if (candidate.table.equalsIgnoreCase(table) && candidate.calls.sum() > 0
+                && candidate.columns.get(0).equalsIgnoreCase(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The columns looked up on each table of a SELECT, UPDATE or DELETE, by table, in the order an index should
+     * have them. Null when the statement is not understood.
+     */
+    static Map<String, Access> parse(String sql)
+    {
+        List<String> tokens = tokenize(sql);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        String statement = tokens.get(0).toUpperCase(Locale.ROOT);
+        if (!statement.equals("SELECT") && !statement.equals("UPDATE") && !statement.equals("DELETE")) {
+            return null;
+        }
+        int depth = 0;
+        for (int i = 1; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (token.equals("(")) {
+                depth++;
+            } else if (token.equals(")")) {
+                depth--;
+            } else if (token.equalsIgnoreCase("UNION") || (depth > 0 && token.equalsIgnoreCase("SELECT"))) {
+                return null;
+            }
+        }
+
+        int i = statement.equals("UPDATE") ? 1 : indexOf(tokens, "FROM", 1);
+        if (i < 0) {
+            return null;
+        }
+        if (!statement.equals("UPDATE")) {
+            i++;
+        }
+        while (i < tokens.size() && (tokens.get(i).equalsIgnoreCase("LOW_PRIORITY") || tokens.get(i).equalsIgnoreCase("IGNORE"))) {
+            i++;
+        }
+        Map<String, String> aliases = new HashMap<>();
+        Map<String, Access> accesses = new LinkedHashMap<>();
+        int[] position = {i};
+        String table = readTable(tokens, position, aliases);
+        if (table == null) {
+            return null;
+        }
+        accesses.put(table, new Access());
+        i = position[0];
+
+        while (i < tokens.size()) {
+            String keyword = tokens.get(i).toUpperCase(Locale.ROOT);
+            if (keyword.equals("JOIN") || keyword.equals("STRAIGHT_JOIN")) {
+                position[0] = i + 1;
+                String joined = readTable(tokens, position, aliases);
+                if (joined == null) {
+                    return null;
+                }
+                i = position[0];
+                Access access = accesses.computeIfAbsent(joined, ignored -> new Access());
+                if (i < tokens.size() && tokens.get(i).equalsIgnoreCase("ON")) {
+                    i = readCondition(tokens, i + 1, table, aliases, joined, accesses, access);
+                    if (i < 0) {
+                        accesses.remove(joined);
+                        i = -i;
+                    }
+                }
+            } else if (keyword.equals("WHERE")) {
+                i = readCondition(tokens, i + 1, table, aliases, null, accesses, null);
+                if (i < 0) {
+                    // the WHERE cannot use an index, only the ORDER BY is left
+                    for (Access access : accesses.values()) {
+                        access.equality.clear();
+                        access.range = null;
+                    }
+                    i = -i;
+                }
+            } else if (keyword.equals("ORDER") && i + 1 < tokens.size() && tokens.get(i + 1).equalsIgnoreCase("BY")) {
+                i = readOrder(tokens, i + 2, table, aliases, accesses.get(table));
+            } else {
+                i++;
+            }
+        }
+
+        accesses.values().removeIf(access -> access.columns().isEmpty());
+        return accesses;
+    }
+
+    private static int indexOf(List<String> tokens, String keyword, int from)
+    {
+        int depth = 0;
+        for (int i = from; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (token.equals("(")) {
+                depth++;
+            } else if (token.equals(")")) {
+                depth--;
+            } else if (depth == 0 && token.equalsIgnoreCase(keyword)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // "cards AS c", "cards c" or "cards", the alias is remembered
+    private static String readTable(List<String> tokens, int[] position, Map<String, String> aliases)
+    {
+        int i = position[0];
+        if (i >= tokens.size() || !isIdentifier(tokens.get(i))) {
+            return null;
+        }
+        String name = tokens.get(i++);
+        if (name.indexOf('.') >= 0) {
+            // a table of another schema, or of information_schema, is not the one the ALTER TABLE would reach
+            return null;
+        }
+        String table = name.toLowerCase(Locale.ROOT);
+        aliases.put(table, table);
+        if (i < tokens.size() && tokens.get(i).equalsIgnoreCase("AS")) {
+            i++;
+        }
+        if (i < tokens.size() && isIdentifier(tokens.get(i))) {
+            aliases.put(tokens.get(i++).toLowerCase(Locale.ROOT), table);
+        }
+        position[0] = i;
+        return table;
+    }
+
+    /*
+     * Reads the comparisons until the end of the clause and returns the index of the token after it, negated when
+     * the condition cannot use an index. A join condition only gives the columns of the joined table, compared
+     * with the rows of the tables before it.
+     */
+    private static int readCondition(List<String> tokens, int i, String table, Map<String, String> aliases, String joined,
+                                     Map<String, Access> accesses, Access joinedAccess)
+    {
+        boolean usable = true;
+        int depth = 0;
+        for (; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            String upper = token.toUpperCase(Locale.ROOT);
+            if (token.equals("(")) {
+                depth++;
+                continue;
+            }
+            if (token.equals(")")) {
+                depth--;
+                continue;
+            }
+            if (depth > 0) {
+                continue;
+            }
+            if (upper.equals("GROUP") || upper.equals("ORDER") || upper.equals("LIMIT") || upper.equals("HAVING")
+                || upper.equals("WHERE") || upper.equals("JOIN") || upper.equals("LEFT") || upper.equals("RIGHT")
+                || upper.equals("INNER") || upper.equals("CROSS") || upper.equals("NATURAL") || upper.equals("STRAIGHT_JOIN")
+                || upper.equals("FOR")) {
+                break;
+            }
+            if (upper.equals("OR") || upper.equals("XOR") || token.equals("||")) {
+                usable = false;
+                continue;
+            }
+            if (!isIdentifier(token) || i + 1 >= tokens.size()) {
+                continue;
+            }
+            String operator = tokens.get(i + 1).toUpperCase(Locale.ROOT);
+            boolean equality = operator.equals("=") || operator.equals("<=>") || operator.equals("IN") || operator.equals("IS");
+            boolean range = operator.equals("<") || operator.equals(">") || operator.equals("<=") || operator.equals(">=")
+                || operator.equals("BETWEEN") || operator.equals("LIKE");
+            if (!equality && !range) {
+                continue;
+            }
+            String[] column = resolve(token, table, aliases);
+            String[] other = equality && i + 2 < tokens.size() && isIdentifier(tokens.get(i + 2))
+                ? resolve(tokens.get(i + 2), table, aliases)
+                : null;
+            if (joined != null) {
+                // "j.owner = c.id" looks rows of j up by owner, whichever side it is written on
+                if (column != null && column[0].equals(joined) && (other == null || !other[0].equals(joined))) {
+                    joinedAccess.add(column[1], equality);
+                } else if (other != null && other[0].equals(joined) && column != null && !column[0].equals(joined)) {
+                    joinedAccess.add(other[1], true);
+                }
+            } else if (column != null && other == null) {
+                Access access = accesses.get(column[0]);
+                if (access != null) {
+                    access.add(column[1], equality);
+                }
+            }
+            if (other != null) {
+                i += 2;
+            }
+        }
+        return usable ? i : -i;
+    }
+
+    private static int readOrder(List<String> tokens, int i, String table, Map<String, String> aliases, Access access)
+    {
+        List<String> columns = new ArrayList<>();
+        boolean usable = true;
+        for (; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            String upper = token.toUpperCase(Locale.ROOT);
+            if (upper.equals("LIMIT") || upper.equals("FOR")) {
+                break;
+            }
+            if (token.equals(",") || upper.equals("ASC") || upper.equals("DESC")) {
+                continue;
+            }
+            String[] column = isIdentifier(token) ? resolve(token, table, aliases) : null;
+            if (column == null || !column[0].equals(table)) {
+                usable = false;
+            } else {
+                columns.add(column[1]);
+            }
+        }
+        // an index only gives the order when every ORDER BY column is in it
+        if (usable) {
+            access.order.addAll(columns);
+        }
+        return i;
+    }
+
+    // {table, column}, null when the qualifier is not a known table or alias
+    private static String[] resolve(String identifier, String table, Map<String, String> aliases)
+    {
+        int dot = identifier.lastIndexOf('.');
+        if (dot < 0) {
+            return new String[]{table, identifier.toLowerCase(Locale.ROOT)};
+        }
+        String qualifier = identifier.substring(0, dot).toLowerCase(Locale.ROOT);
+        String owner = aliases.get(qualifier.substring(qualifier.lastIndexOf('.') + 1));
+        return owner != null ? new String[]{owner, identifier.substring(dot + 1).toLowerCase(Locale.ROOT)} : null;
+    }
+
+    private static boolean isIdentifier(String token)
+    {
+        char first = token.charAt(0);
+        return (Character.isLetter(first) || first == '_' || first == '$') && !KEYWORDS.contains(token.toUpperCase(Locale.ROOT));
+    }
+
+    // words, numbers, operators and parentheses, a quoted literal becomes "'"
+    static List<String> tokenize(String sql)
+    {
+        List<String> tokens = new ArrayList<>();
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                i++;
+                while (i < length && sql.charAt(i) != c) {
+                    i += sql.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+                tokens.add("'");
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '`') {
+                StringBuilder word = new StringBuilder();
+                while (i < length) {
+                    c = sql.charAt(i);
+                    if (c == '`') {
+                        i++;
+                    } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.') {
+                        word.append(c);
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                if (word.length() > 0) {
+                    tokens.add(word.toString());
+                }
+            } else if (sql.startsWith("<=>", i)) {
+                tokens.add("<=>");
+                i += 3;
+            } else if (i + 1 < length && (sql.startsWith("<=", i) || sql.startsWith(">=", i) || sql.startsWith("<>", i)
+                || sql.startsWith("!=", i) || sql.startsWith("||", i))) {
+                tokens.add(sql.substring(i, i + 2));
+                i += 2;
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    static final class Access
+    {
+        private final Set<String> equality = new LinkedHashSet<>();
+        private String range;
+        private final List<String> order = new ArrayList<>();
+
+        private void add(String column, boolean equality)
+        {
+            if (equality) {
+                this.equality.add(column);
+            } else if (this.range == null) {
+                this.range = column;
+            }
+        }
+
+        // the index stops being used for lookups after the first range column
+        List<String> columns()
+        {
+            List<String> columns = new ArrayList<>(this.equality);
+            if (this.range != null) {
+                if (!this.equality.contains(this.range)) {
+                    columns.add(this.range);
+                }
+            } else {
+                for (String column : this.order) {
+                    if (!columns.contains(column)) {
+                        columns.add(column);
+                    }
+                }
+            }
+            return columns;
+        }
+    }
+
+    private static final class Candidate
+    {
+        private final String table;
+        private final List<String> columns;
+        // the first columns, compared with = or IN, their order in the index does not matter
+        private final int equalities;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        // the slowest statement seen, explained by the report
+        private long slowest = -1;
+        private String sampleSql;
+        private Object[] sampleParams;
+
+        private Candidate(String table, List<String> columns, int equalities)
+        {
+            this.table = table;
+            this.columns = Collections.unmodifiableList(columns);
+            this.equalities = equalities;
+        }
+
+        private void record(String sql, Object[] params, long nanos)
+        {
+            this.calls.increment();
+            this.nanos.add(nanos);
+            if (nanos > this.slowest) {
+                synchronized (this) {
+                    if (nanos > this.slowest) {
+                        this.slowest = nanos;
+                        this.sampleSql = sql;
+                        this.sampleParams = params.clone();
+                    }
+                }
+            }
+        }
+
+        // served by an index starting with the equality columns, in any order, followed by the others in order
+        private boolean isServedBy(List<SchemaSync.IndexDefinition> indexes)
+        {
+            for (SchemaSync.IndexDefinition index : indexes) {
+                if (index.key == Column.Key.FULLTEXT || index.key == Column.Key.SPATIAL || index.columns.size() < this.columns.size()) {
+                    continue;
+                }
+                Set<String> leading = new HashSet<>();
+                for (int i = 0; i < this.equalities; i++) {
+                    leading.add(index.columns.get(i).toLowerCase(Locale.ROOT));
+                }
+                boolean served = leading.containsAll(this.columns.subList(0, this.equalities));
+                for (int i = this.equalities; served && i < this.columns.size(); i++) {
+                    served = index.columns.get(i).equalsIgnoreCase(this.columns.get(i));
+                }
+                if (served) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static final class Suggestion
+    {
+        private final String table;
+        private final List<String> columns;
+        private final long calls;
+        private final long totalNanos;
+        private final String accessType;
+        private final String key;
+        private final long rows;
+        private final long estimatedBenefitNanos;
+        private final String sql;
+
+        private Suggestion(String table, List<String> columns, long calls, long totalNanos, String accessType, String key,
+                           long rows, long estimatedBenefitNanos, String sql)
+        {
+            this.table = table;
+            this.columns = columns;
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+            this.accessType = accessType;
+            this.key = key;
+            this.rows = rows;
+            this.estimatedBenefitNanos = estimatedBenefitNanos;
+            this.sql = sql;
+        }
+
+        public String getTable()
+        {
+            return this.table;
+        }
+
+        public List<String> getColumns()
+        {
+            return this.columns;
+        }
+
+        public long getCalls()
+        {
+            return this.calls;
+        }
+
+        // time spent in the statements the index would serve, 0 when they are not timed
+        public long getTotalNanos()
+        {
+            return this.totalNanos;
+        }
+
+        // the EXPLAIN type of the table, "ALL" for a full scan, null when EXPLAIN failed
+        public String getAccessType()
+        {
+            return this.accessType;
+        }
+
+        // the index EXPLAIN chose, null for none
+        public String getKey()
+        {
+            return this.key;
+        }
+
+        // rows EXPLAIN expects to read, -1 when unknown
+        public long getRows()
+        {
+            return this.rows;
+        }
+
+        // a rough share of the total time the index would save
+        public long getEstimatedBenefitNanos()
+        {
+            return this.estimatedBenefitNanos;
+        }
+
+        public String getSql()
+        {
+            return this.sql;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.table + this.columns + " calls=" + this.calls + " time=" + this.totalNanos / 1_000_000 + "ms type="
+                + this.accessType + " key=" + this.key + " rows=" + this.rows + " benefit~"
+                + this.estimatedBenefitNanos / 1_000_000 + "ms : " + this.sql;
+        }
+    }
+
+    public static final class Report
+    {
+        private final List<Suggestion> suggestions;
+        private final List<String> unusedIndexes;
+
+        private Report(List<Suggestion> suggestions, List<String> unusedIndexes)
+        {
+            this.suggestions = Collections.unmodifiableList(suggestions);
+            this.unusedIndexes = Collections.unmodifiableList(unusedIndexes);
+        }
+
+        // the most beneficial first
+        public List<Suggestion> getSuggestions()
+        {
+            return this.suggestions;
+        }
+
+        // "table.index", plain declared indexes nothing reads but every write maintains
+        public List<String> getUnusedIndexes()
+        {
+            return this.unusedIndexes;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder("Suggested indexes :");
+            for (Suggestion suggestion : this.suggestions) {
+                builder.append(System.lineSeparator()).append("  ").append(suggestion);
+            }
+            builder.append(System.lineSeparator()).append("Unused indexes : ").append(this.unusedIndexes);
+            return builder.toString();
+        }
+    }
+}
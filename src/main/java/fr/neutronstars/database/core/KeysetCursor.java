@@ -0,0 +1,112 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+// the last seen ORDER BY values of a page, as an opaque token safe to put in an URL
+final class KeysetCursor
+{
+    private KeysetCursor()
+    {
+    }
+
+    static String encode(Object[] values)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Object value : values) {
+            if (builder.length() != 0) {
+                builder.append('.');
+            }
+            char tag;
+            String text = null;
+            // a row value comparison with NULL is never true, every row after it would be skipped
+            if (value == null) {
+                throw new IllegalArgumentException("Keyset pagination cannot seek past a NULL, the ORDER BY columns must not be nullable.");
+            } else if (value instanceof byte[]) {
+                tag = 'b';
+            } else if (value.getClass().isArray()) {
+                throw new IllegalArgumentException("Cannot put a " + value.getClass().getSimpleName() + " in a keyset cursor.");
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger) {
+                tag = 'l';
+                text = value.toString();
+            } else if (value instanceof Number) {
+                tag = 'n';
+                text = value.toString();
+            } else if (value instanceof Timestamp) {
+                tag = 't';
+                text = ((Timestamp) value).toLocalDateTime().toString();
+            } else if (value instanceof LocalDateTime) {
+                tag = 't';
+                text = value.toString();
+            } else if (value instanceof java.sql.Date || value instanceof LocalDate) {
+                tag = 'd';
+                text = value.toString();
+            } else {
+                tag = 's';
+                text = value.toString();
+            }
+            byte[] bytes = text != null ? text.getBytes(StandardCharsets.UTF_8) : (byte[]) value;
+            builder.append(tag).append(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+        }
+        return builder.toString();
+    }
+
+    static Object[] decode(String cursor)
+    {
+        String[] parts = cursor.split("\\.", -1);
+        Object[] values = new Object[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                byte[] bytes = Base64.getUrlDecoder().decode(parts[i].substring(1));
+                String text = new String(bytes, StandardCharsets.UTF_8);
+                switch (parts[i].charAt(0)) {
+                    case 'b':
+                        values[i] = bytes;
+                        break;
+                    case 'l':
+                        BigInteger integer = new BigInteger(text);
+                        values[i] = integer.bitLength() < 64 ? (Object) integer.longValue() : integer;
+                        break;
+                    case 'n':
+                        values[i] = new BigDecimal(text);
+                        break;
+                    case 't':
+                        values[i] = LocalDateTime.parse(text);
+                        break;
+                    case 'd':
+                        values[i] = LocalDate.parse(text);
+                        break;
+                    case 's':
+                        values[i] = text;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid cursor : " + cursor);
+                }
+            }
+        } catch (RuntimeException exception) {
+            throw new IllegalArgumentException("Invalid cursor : " + cursor, exception);
+        }
+        return values;
+    }
+}
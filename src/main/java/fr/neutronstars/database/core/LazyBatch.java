@@ -0,0 +1,158 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Lazy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The lazy columns of entities read together. Each one gets a Lazy per unloaded column and the first get()
+ * on any of them reads the columns of every entity of the batch with a single query on their primary keys.
+ * Entities attached once the batch was read are loaded by the next get() reaching one of them.
+ */
+final class LazyBatch<T>
+{
+    private final AbstractRepository<T> repository;
+    private final EntityMetadata<T> metadata;
+    private final int capacity;
+    private final List<List<Object>> keys = new ArrayList<>();
+    private final List<Object[]> values = new ArrayList<>();
+
+    LazyBatch(AbstractRepository<T> repository, EntityMetadata<T> metadata, int capacity)
+    {
+        this.repository = repository;
+        this.metadata = metadata;
+        this.capacity = capacity;
+    }
+
+    synchronized boolean isFull()
+    {
+        return this.keys.size() >= this.capacity;
+    }
+
+    // the lazy fields the row mapper left to null get their loader, the selected ones are kept
+    synchronized void attach(T instance) throws Throwable
+    {
+        List<EntityMetadata.ColumnMetadata> lazyColumns = this.metadata.getLazyColumns();
+        int entry = this.keys.size();
+        boolean attached = false;
+        for (int i = 0; i < lazyColumns.size(); i++) {
+            EntityMetadata.ColumnMetadata column = lazyColumns.get(i);
+            if (column.get(instance) == null) {
+                int index = i;
+                column.set(instance, Lazy.loading(() -> this.value(entry, index)));
+                attached = true;
+            }
+        }
+        if (attached) {
+            Object[] key = AbstractRepository.values(instance, this.metadata.getPrimaryKeys());
+            for (int i = 0; i < key.length; i++) {
+                key[i] = AbstractRepository.normalizeKey(key[i]);
+            }
+            this.keys.add(Arrays.asList(key));
+        }
+    }
+
+    private synchronized Object value(int entry, int column) throws Exception
+    {
+        if (entry >= this.values.size()) {
+            this.load();
+        }
+        Object[] row = this.values.get(entry);
+        if (row == null) {
+            return null;
+        }
+        // every Lazy keeps its own value, the batch does not need it any more
+        Object value = row[column];
+        row[column] = null;
+        return value;
+    }
+
+    private void load() throws Exception
+    {
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.metadata.getPrimaryKeys();
+        List<EntityMetadata.ColumnMetadata> lazyColumns = this.metadata.getLazyColumns();
+        int from = this.values.size();
+        int to = this.keys.size();
+        Map<List<Object>, List<Integer>> entries = new HashMap<>();
+        for (int entry = from; entry < to; entry++) {
+            entries.computeIfAbsent(this.keys.get(entry), ignored -> new ArrayList<>(1)).add(entry);
+        }
+
+        String[] keyColumns = AbstractRepository.columnNames(primaryKeys);
+        String tuple = keyColumns.length == 1
+            ? "?"
+            : "(" + String.join(",", AbstractRepository.placeholders(keyColumns.length)) + ")";
+        StringBuilder condition = new StringBuilder(keyColumns.length == 1 ? keyColumns[0] : "(" + String.join(",", keyColumns) + ")")
+            .append(" IN (");
+        Object[] params = new Object[entries.size() * keyColumns.length];
+        int i = 0;
+        for (List<Object> key : entries.keySet()) {
+            condition.append(i == 0 ? "" : ",").append(tuple);
+            for (Object value : key) {
+                params[i++] = value;
+            }
+        }
+        String[] columns = Arrays.copyOf(keyColumns, keyColumns.length + lazyColumns.size());
+        MethodHandle[] readers = new MethodHandle[lazyColumns.size()];
+        for (int c = 0; c < readers.length; c++) {
+            columns[keyColumns.length + c] = lazyColumns.get(c).getName();
+            readers[c] = RowMapper.reader(lazyColumns.get(c).getValueType(), keyColumns.length + c + 1)
+                .asType(MethodType.methodType(Object.class, ResultSet.class));
+        }
+        // a row deleted since keeps its columns to null
+        Object[][] rows = new Object[to - from][];
+
+        ResultSet resultSet = this.repository.createQuery()
+            .select(columns)
+            .where(condition.append(')').toString())
+            .getResult(params);
+        try {
+            while (resultSet.next()) {
+                List<Object> key = new ArrayList<>(keyColumns.length);
+                for (int k = 1; k <= keyColumns.length; k++) {
+                    key.add(AbstractRepository.normalizeKey(resultSet.getObject(k)));
+                }
+                List<Integer> found = entries.get(key);
+                if (found == null) {
+                    continue;
+                }
+                Object[] row = new Object[readers.length];
+                for (int c = 0; c < readers.length; c++) {
+                    row[c] = (Object) readers[c].invokeExact(resultSet);
+                }
+                for (int entry : found) {
+                    rows[entry - from] = found.size() == 1 ? row : row.clone();
+                }
+            }
+            this.values.addAll(Arrays.asList(rows));
+        } catch (Exception | Error exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        } finally {
+            this.repository.close(resultSet);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// counts the rows read from the result set it wraps and records them in the metrics of its query when closed
+final class MeteredResultSet extends ForwardingResultSet
+{
+    private final QueryMetrics metrics;
+    private long rows;
+    private boolean recorded;
+
+    MeteredResultSet(ResultSet resultSet, QueryMetrics metrics)
+    {
+        super(resultSet);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean next() throws SQLException
+    {
+        if (this.resultSet.next()) {
+            this.rows++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws SQLException
+    {
+        if (!this.recorded) {
+            this.recorded = true;
+            this.metrics.rows(this.rows);
+        }
+        this.resultSet.close();
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Reads primary key ranges on a pool of its own, one connection per worker, and hands their rows to the stream
+ * through a bounded queue. The workers never outnumber the connections they were sized for and the threads of
+ * the stream only see rows already read, whatever pool runs them.
+ */
+final class ParallelScan<T>
+{
+    private static final int QUEUE_SIZE = 1024;
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+
+    private final RangeReader<T> reader;
+    private final ConcurrentLinkedQueue<long[]> ranges;
+    private final BlockingQueue<Object> rows = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicInteger running;
+    private final ForkJoinPool pool;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    private ParallelScan(List<long[]> ranges, int workers, RangeReader<T> reader)
+    {
+        this.reader = reader;
+        this.ranges = new ConcurrentLinkedQueue<>(ranges);
+        this.running = new AtomicInteger(workers);
+        this.pool = new ForkJoinPool(workers);
+        for (int i = 0; i < workers; i++) {
+            this.pool.execute(this::work);
+        }
+    }
+
+    static <T> Stream<T> stream(List<long[]> ranges, int workers, RangeReader<T> reader)
+    {
+        ParallelScan<T> scan = new ParallelScan<>(ranges, workers, reader);
+        return StreamSupport.stream(scan.new Rows(), true).onClose(scan::close);
+    }
+
+    // each worker takes the next range when done with one, a sparse range does not leave it idle
+    private void work()
+    {
+        try {
+            long[] range;
+            while (!this.closed && (range = this.ranges.poll()) != null) {
+                try (Stream<T> stream = this.reader.read(range)) {
+                    Iterator<T> iterator = stream.iterator();
+                    while (!this.closed && iterator.hasNext()) {
+                        T row = iterator.next();
+                        this.offer(row == null ? NULL : row);
+                    }
+                }
+            }
+        } catch (Throwable throwable) {
+            // the other workers stop, the stream throws once it reaches the end
+            this.failure = throwable;
+            this.closed = true;
+        } finally {
+            if (this.running.decrementAndGet() == 0) {
+                this.offer(END);
+                this.pool.shutdown();
+            }
+        }
+    }
+
+    private void offer(Object row)
+    {
+        try {
+            // a stream closed while full is no longer read, the worker gives up instead of waiting forever
+            while (!this.rows.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                if (this.closed && row != END) {
+                    return;
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void close()
+    {
+        this.closed = true;
+        this.rows.clear();
+        this.pool.shutdown();
+    }
+
+    @FunctionalInterface
+    interface RangeReader<T>
+    {
+        Stream<T> read(long[] range) throws Exception;
+    }
+
+    private final class Rows extends Spliterators.AbstractSpliterator<T>
+    {
+        private boolean done;
+
+        private Rows()
+        {
+            super(Long.MAX_VALUE, Spliterator.CONCURRENT);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super T> action)
+        {
+            if (this.done) {
+                return false;
+            }
+            Object row;
+            try {
+                row = ParallelScan.this.rows.take();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the scanned rows.", exception);
+            }
+            if (row == END) {
+                this.done = true;
+                Throwable failure = ParallelScan.this.failure;
+                if (failure != null) {
+                    throw failure instanceof RuntimeException ? (RuntimeException) failure
+                        : new IllegalStateException(failure.getMessage(), failure);
+                }
+                return false;
+            }
+            action.accept(row == NULL ? null : (T) row);
+            return true;
+        }
+    }
+}
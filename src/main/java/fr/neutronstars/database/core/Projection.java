@@ -0,0 +1,99 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.ResultMapper;
+
+import java.sql.ResultSet;
+
+/*
+ * A subset of the columns of a table and how its rows are read: a class whose @Column fields name the columns,
+ * or any mapper. The entities of a repository with only some of their columns are read with
+ * AbstractRepository#findAll(String...).
+ */
+public final class Projection<P>
+{
+    // a class of @Column fields without a @Table, mapped like the entities
+    public static <P> Projection<P> of(Class<P> type)
+    {
+        EntityMetadata<P> metadata = EntityMetadata.ofColumns(type);
+        if (metadata.getColumns().isEmpty()) {
+            throw new IllegalArgumentException("No @Column field declared on " + type.getName() + " class !");
+        }
+        return new Projection<>(AbstractRepository.columnNames(metadata.getColumns()), metadata, null);
+    }
+
+    public static <P> Projection<P> of(ResultMapper<P> mapper, String... columns)
+    {
+        return new Projection<>(checkColumns(columns), null, mapper);
+    }
+
+    // entities with only the given columns set, the fields of the other columns keep their default value
+    static <T> Projection<T> of(EntityMetadata<T> metadata, String... columns)
+    {
+        return new Projection<>(checkColumns(columns), metadata, null);
+    }
+
+    private static String[] checkColumns(String[] columns)
+    {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("A projection needs at least one column.");
+        }
+        return columns.clone();
+    }
+
+    private final String[] columns;
+    private final EntityMetadata<P> metadata;
+    private final ResultMapper<P> mapper;
+
+    private Projection(String[] columns, EntityMetadata<P> metadata, ResultMapper<P> mapper)
+    {
+        this.columns = columns;
+        this.metadata = metadata;
+        this.mapper = mapper;
+    }
+
+    String[] getColumns()
+    {
+        return this.columns;
+    }
+
+    // a mapper for one result set, the row mapper is only resolved on its first row
+    ResultMapper<P> newMapper()
+    {
+        return this.mapper != null ? this.mapper : new BoundMapper<>(this.metadata);
+    }
+
+    private static final class BoundMapper<P> implements ResultMapper<P>
+    {
+        private final EntityMetadata<P> metadata;
+        private RowMapper<P> mapper;
+
+        private BoundMapper(EntityMetadata<P> metadata)
+        {
+            this.metadata = metadata;
+        }
+
+        @Override
+        public P map(ResultSet resultSet) throws Throwable
+        {
+            if (this.mapper == null) {
+                this.mapper = this.metadata.getRowMapper(resultSet.getMetaData());
+            }
+            return this.mapper.map(resultSet);
+        }
+    }
+}
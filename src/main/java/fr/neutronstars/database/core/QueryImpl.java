@@ -15,12 +15,23 @@
  */
 package fr.neutronstars.database.core;
 
+import fr.neutronstars.database.api.CompiledQuery;
 import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.Page;
 import fr.neutronstars.database.api.Query;
+import fr.neutronstars.database.api.ResultMapper;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public class QueryImpl implements Query<String>
 {
@@ -34,24 +45,63 @@ public class QueryImpl implements Query<String>
     private String select;
     private String update;
     private String delete;
-    private String join;
-    private String where;
+    // the clauses made of several fragments grow in place, build() copies everything once
+    private StringBuilder join;
+    private StringBuilder where;
     private String groupBy;
-    private String having;
-    private String orderBy;
+    private StringBuilder having;
+    private StringBuilder orderBy;
     private String limit;
+    private int limitCount = -1;
+    private int limitOffset;
+    // the SQL of the last build(), dropped by any change, so a nested query is only built once. A union is
+    // rebuilt every time, the query it extends may have changed since
+    private String built;
+    private final List<String> orderColumns = new ArrayList<>();
+    private final List<Order> orderDirections = new ArrayList<>();
+    private final Set<String> tables = new HashSet<>();
+    private long cacheTimeToLive;
 
     public QueryImpl(Database<Connection, ResultSet> database, String table)
     {
         this(database, table, null, false);
     }
 
+    // a query over a nested query, which brings its own tables
+    QueryImpl(Database<Connection, ResultSet> database, String table, Set<String> tables)
+    {
+        this(database, table, null, false, tables);
+    }
+
     private QueryImpl(Database<Connection, ResultSet> database, String table, Query<String> unionQuery, boolean unionAll)
+    {
+        this(database, table, unionQuery, unionAll, Collections.singleton(tableName(table)));
+    }
+
+    private QueryImpl(Database<Connection, ResultSet> database, String table, Query<String> unionQuery, boolean unionAll, Set<String> tables)
     {
         this.database = database;
         this.table = table;
         this.unionQuery = unionQuery;
         this.unionAll = unionAll;
+        this.tables.addAll(tables);
+        if(unionQuery != null){
+            this.tables.addAll(unionQuery.getTables());
+        }
+    }
+
+    // "`cards` AS c" -> "cards", anything that is not a plain table name is unknown
+    static String tableName(String table)
+    {
+        String name = table.trim();
+        if(name.isEmpty() || name.charAt(0) == '('){
+            return ANY_TABLE;
+        }
+        int end = 0;
+        while(end < name.length() && !Character.isWhitespace(name.charAt(end))){
+            end++;
+        }
+        return name.substring(0, end).replace("`", "").toLowerCase();
     }
 
     @Override
@@ -70,11 +120,18 @@ public class QueryImpl implements Query<String>
 
     @Override
     public Query<String> insertInto(String[] columns, String[]... values) {
-        String[] transform = new String[values.length];
+        this.checkNotStarted();
+        StringBuilder builder = this.insertHeader(columns);
+        if(values.length == 0){
+            builder.append("()");
+        }
         for(int i = 0; i < values.length; i++){
-            transform[i] = (i > 0 ? "(" : "") + String.join(",", values[i]) + (i < values.length-1 ? ")" : "");
+            builder.append(i > 0 ? ",(" : "(");
+            appendJoined(builder, values[i]).append(')');
         }
-        return this.insertInto(columns, transform);
+        this.insertInto = builder.toString();
+        this.built = null;
+        return this;
     }
 
     @Override
@@ -84,11 +141,35 @@ public class QueryImpl implements Query<String>
 
     @Override
     public Query<String> insertInto(String[] columns, String... values) {
+        this.checkNotStarted();
+        this.insertInto = appendJoined(this.insertHeader(columns).append('('), values).append(')').toString();
+        this.built = null;
+        return this;
+    }
+
+    private StringBuilder insertHeader(String[] columns)
+    {
+        StringBuilder builder = new StringBuilder(32 + this.table.length() + columns.length * 16)
+            .append("INSERT INTO ").append(this.table).append(" (");
+        return appendJoined(builder, columns).append(") VALUES ");
+    }
+
+    private static StringBuilder appendJoined(StringBuilder builder, String[] values)
+    {
+        for(int i = 0; i < values.length; i++){
+            if(i > 0){
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder;
+    }
+
+    private void checkNotStarted()
+    {
         if(this.select != null || this.update != null || this.delete != null || this.insertInto != null){
             throw new IllegalArgumentException("Request already started !");
         }
-        this.insertInto = "INSERT INTO " + this.table + " (" + String.join(",", columns) + ") VALUES (" + String.join(",", values) + ")";
-        return this;
     }
 
     @Override
@@ -100,36 +181,34 @@ public class QueryImpl implements Query<String>
             throw new IllegalArgumentException("The duplicate key is already declared !");
         }
         this.onDuplicateKey = " ON DUPLICATE KEY UPDATE " + String.join(",", values);
+        this.built = null;
         return this;
     }
 
     @Override
     public Query<String> select(String... columns)
     {
-        if(this.select != null || this.update != null || this.delete != null || this.insertInto != null){
-            throw new IllegalArgumentException("Request already started !");
-        }
+        this.checkNotStarted();
         this.select = "SELECT "+String.join(",", columns)+" FROM "+this.table;
+        this.built = null;
         return this;
     }
 
     @Override
     public Query<String> update(String... values)
     {
-        if(this.select != null || this.update != null || this.delete != null || this.insertInto != null){
-            throw new IllegalArgumentException("Request already started !");
-        }
+        this.checkNotStarted();
         this.update = "UPDATE " + this.table + " SET " + String.join(",", values);
+        this.built = null;
         return this;
     }
 
     @Override
     public Query<String> delete()
     {
-        if(this.select != null || this.update != null || this.delete != null || this.insertInto != null){
-            throw new IllegalArgumentException("Request already started !");
-        }
+        this.checkNotStarted();
         this.delete = "DELETE FROM "+this.table;
+        this.built = null;
         return this;
     }
 
@@ -150,21 +229,37 @@ public class QueryImpl implements Query<String>
 
     @Override
     public Query<String> join(Join join, String table, String condition) {
+        this.tables.add(tableName(table));
+        return this.appendJoin(join, table, condition);
+    }
+
+    private Query<String> appendJoin(Join join, String table, String condition) {
+        this.joinClause(join).append(table);
+        this.join.append(" ON ").append(condition);
+        return this;
+    }
+
+    private StringBuilder joinClause(Join join) {
         if(this.join == null){
-            this.join = "";
+            this.join = new StringBuilder(64);
         }
-        this.join += " " + join.toString() + " " + table + " ON " + condition;
-        return this;
+        this.built = null;
+        return this.join.append(' ').append(join).append(' ');
     }
 
     @Override
     public Query<String> join(Join join, Query<?> query, String alias, String condition) {
-        return this.join(join, "("+query.build()+")", alias, condition);
+        this.tables.addAll(query.getTables());
+        this.joinClause(join).append('(').append(query.build()).append(") AS ").append(alias)
+            .append(" ON ").append(condition);
+        return this;
     }
 
     @Override
     public Query<String> join(Join join, String table, String alias, String condition) {
-        return this.join(join, table + " AS " + alias, condition);
+        this.tables.add(tableName(table));
+        this.joinClause(join).append(table).append(" AS ").append(alias).append(" ON ").append(condition);
+        return this;
     }
 
     @Override
@@ -174,18 +269,25 @@ public class QueryImpl implements Query<String>
 
     @Override
     public Query<String> where(String closeWhere, Where where) {
+        this.whereClause(where).append(closeWhere);
+        return this;
+    }
+
+    // opens the clause without a connector, or appends the connector to the open one
+    private StringBuilder whereClause(Where where) {
         if(where == null){
             if(this.where != null){
                 throw new IllegalArgumentException("The where close is already open !");
             }
-            this.where = " WHERE "+closeWhere;
-            return this;
-        }
-        if(this.where == null){
-            throw new IllegalArgumentException("The where close is not open !");
+            this.where = new StringBuilder(64).append(" WHERE ");
+        }else{
+            if(this.where == null){
+                throw new IllegalArgumentException("The where close is not open !");
+            }
+            this.where.append(' ').append(where).append(' ');
         }
-        this.where += " " + where.toString() + " " + closeWhere;
-        return this;
+        this.built = null;
+        return this.where;
     }
 
     @Override
@@ -211,7 +313,10 @@ public class QueryImpl implements Query<String>
     @Override
     public Query<String> where(Where where, String keyWhere, String whereCondition, Query<?> valueQuery)
     {
-        return this.where(where, keyWhere, whereCondition, "(" + valueQuery.build() + ")");
+        this.tables.addAll(valueQuery.getTables());
+        this.whereClause(where).append(keyWhere).append(' ').append(whereCondition)
+            .append(" (").append(valueQuery.build()).append(')');
+        return this;
     }
 
     @Override
@@ -229,17 +334,7 @@ public class QueryImpl implements Query<String>
     @Override
     public Query<String> where(Where where, String keyWhere, String whereCondition, String valueWhere)
     {
-        if(where == null){
-            if(this.where != null){
-                throw new IllegalArgumentException("The where close is already open !");
-            }
-            this.where = " WHERE "+keyWhere+" "+whereCondition+" "+valueWhere;
-            return this;
-        }
-        if(this.where == null){
-            throw new IllegalArgumentException("The where close is not open !");
-        }
-        this.where += " " + where.toString()+" "+keyWhere+" "+whereCondition+" "+valueWhere;
+        this.whereClause(where).append(keyWhere).append(' ').append(whereCondition).append(' ').append(valueWhere);
         return this;
     }
 
@@ -249,6 +344,7 @@ public class QueryImpl implements Query<String>
             throw new IllegalArgumentException("The group by close is already open !");
         }
         this.groupBy = " GROUP BY "+column;
+        this.built = null;
         return this;
     }
 
@@ -259,18 +355,24 @@ public class QueryImpl implements Query<String>
 
     @Override
     public Query<String> having(String closeWhere, Where where) {
+        this.havingClause(where).append(closeWhere);
+        return this;
+    }
+
+    private StringBuilder havingClause(Where where) {
         if(where == null){
             if(this.having != null){
                 throw new IllegalArgumentException("The having close is already open !");
             }
-            this.having = " HAVING "+closeWhere;
-            return this;
-        }
-        if(this.having == null){
-            throw new IllegalArgumentException("The having close is not open !");
+            this.having = new StringBuilder(64).append(" HAVING ");
+        }else{
+            if(this.having == null){
+                throw new IllegalArgumentException("The having close is not open !");
+            }
+            this.having.append(' ').append(where).append(' ');
         }
-        this.having += " " + where.toString() + " " + closeWhere;
-        return this;
+        this.built = null;
+        return this.having;
     }
 
     @Override
@@ -296,6 +398,7 @@ public class QueryImpl implements Query<String>
     @Override
     public Query<String> having(Where where, String keyWhere, String whereCondition, Query<?> valueQuery)
     {
+        this.tables.addAll(valueQuery.getTables());
         return this.where(where, keyWhere, whereCondition, "(" + valueQuery.build() + ")");
     }
 
@@ -314,17 +417,7 @@ public class QueryImpl implements Query<String>
     @Override
     public Query<String> having(Where where, String keyWhere, String whereCondition, String valueWhere)
     {
-        if(where == null){
-            if(this.having != null){
-                throw new IllegalArgumentException("The having close is already open !");
-            }
-            this.having = " HAVING "+keyWhere+" "+whereCondition+" "+valueWhere;
-            return this;
-        }
-        if(this.having == null){
-            throw new IllegalArgumentException("The having close is not open !");
-        }
-        this.having += " " + where.toString()+" "+keyWhere+" "+whereCondition+" "+valueWhere;
+        this.havingClause(where).append(keyWhere).append(' ').append(whereCondition).append(' ').append(valueWhere);
         return this;
     }
 
@@ -332,11 +425,14 @@ public class QueryImpl implements Query<String>
     public Query<String> orderBy(String column, Order order)
     {
         if(this.orderBy == null){
-            this.orderBy = " ORDER BY ";
+            this.orderBy = new StringBuilder(32).append(" ORDER BY ");
         }else {
-            this.orderBy += ", ";
+            this.orderBy.append(", ");
         }
-        this.orderBy += column + " " + order.toString();
+        this.orderBy.append(column).append(' ').append(order);
+        this.built = null;
+        this.orderColumns.add(column);
+        this.orderDirections.add(order);
         return this;
     }
 
@@ -353,6 +449,9 @@ public class QueryImpl implements Query<String>
             throw new IllegalArgumentException("The limit close is already open !");
         }
         this.limit = " LIMIT " + limit + " OFFSET " + offset;
+        this.limitCount = limit;
+        this.limitOffset = offset;
+        this.built = null;
         return this;
     }
 
@@ -368,41 +467,250 @@ public class QueryImpl implements Query<String>
         return new QueryImpl(this.database, table, this, all);
     }
 
+    @Override
+    public Query<String> cache(long timeToLive, TimeUnit unit)
+    {
+        this.cacheTimeToLive = unit.toMillis(timeToLive);
+        return this;
+    }
+
+    @Override
+    public long getCacheTimeToLive()
+    {
+        return this.cacheTimeToLive;
+    }
+
+    @Override
+    public Set<String> getTables()
+    {
+        return Collections.unmodifiableSet(this.tables);
+    }
+
     @Override
     public <R> R getResult(Object... params) throws Exception
     {
         return (R) this.database.getResults(this, params);
     }
 
+    List<String> getOrderColumns()
+    {
+        return this.orderColumns;
+    }
+
+    List<Order> getOrderDirections()
+    {
+        return this.orderDirections;
+    }
+
+    // -1 without a LIMIT clause
+    int getLimit()
+    {
+        return this.limitCount;
+    }
+
+    int getOffset()
+    {
+        return this.limitOffset;
+    }
+
+    // the SELECT run on every shard: each one returns its first offset + limit rows, the offset is applied on the merged rows
+    String buildForShards()
+    {
+        String sql = this.build();
+        if(this.limit == null || this.select == null || !sql.endsWith(this.limit)){
+            return sql;
+        }
+        return sql.substring(0, sql.length() - this.limit.length()) + " LIMIT " + ((long) this.limitCount + this.limitOffset);
+    }
+
+    // the result set must still be closed through the database once read
+    @Override
+    public <R> CompletableFuture<R> getResultAsync(Object... params)
+    {
+        return this.database.supplyAsync(() -> this.getResult(params));
+    }
+
+    @Override
+    public CompletableFuture<Void> executeAsync(Object... params)
+    {
+        return this.database.supplyAsync(() -> {
+            this.execute(params);
+            return null;
+        });
+    }
+
+    @Override
+    public <E> Stream<E> stream(ResultMapper<E> mapper, Object... params) throws Exception
+    {
+        return this.database.stream(this, mapper, params);
+    }
+
+    // rows are only fetched while subscribers have outstanding demand
+    @Override
+    public <E> Flow.Publisher<E> publish(ResultMapper<E> mapper, Object... params)
+    {
+        return new ResultSetPublisher<>(this.database, () -> this.database.stream(this, mapper, params));
+    }
+
+    @Override
+    public <E> Page<E> page(ResultMapper<E> mapper, String cursor, int size, Object... params) throws Exception
+    {
+        if(this.select == null || this.unionQuery != null){
+            throw new IllegalArgumentException("Keyset pagination needs a single SELECT query.");
+        }
+        if(this.orderColumns.isEmpty()){
+            throw new IllegalArgumentException("Keyset pagination needs an ORDER BY clause.");
+        }
+        if(this.limit != null){
+            throw new IllegalArgumentException("Keyset pagination sets the limit itself.");
+        }
+        if(size < 1){
+            throw new IllegalArgumentException("Invalid page size : " + size);
+        }
+        Order order = this.orderDirections.get(0);
+        for(Order direction : this.orderDirections){
+            if(direction != order){
+                throw new IllegalArgumentException("Keyset pagination needs every ORDER BY column in the same direction.");
+            }
+        }
+        Object[] last = cursor == null ? null : KeysetCursor.decode(cursor);
+        if(last != null && last.length != this.orderColumns.size()){
+            throw new IllegalArgumentException("The cursor does not match the ORDER BY columns.");
+        }
+
+        StringBuilder builder = new StringBuilder(this.select);
+        if(this.join != null){
+            builder.append(this.join);
+        }
+        Object[] values = params;
+        if(last != null){
+            // the seek values are bound right after the parameters of the clauses before them
+            int position = 0;
+            for(int i = 0; i < builder.length(); i++){
+                if(builder.charAt(i) == '?'){
+                    position++;
+                }
+            }
+            if(this.where != null){
+                for(int i = 0; i < this.where.length(); i++){
+                    if(this.where.charAt(i) == '?'){
+                        position++;
+                    }
+                }
+                builder.append(" WHERE (").append(this.where, " WHERE ".length(), this.where.length()).append(") AND ");
+            }else{
+                builder.append(" WHERE ");
+            }
+            if(last.length == 1){
+                builder.append(this.orderColumns.get(0));
+            }else{
+                builder.append('(').append(String.join(",", this.orderColumns)).append(')');
+            }
+            builder.append(order == Order.ASC ? " > " : " < ");
+            builder.append(last.length == 1 ? "?" : "(" + String.join(",", Collections.nCopies(last.length, "?")) + ")");
+            position = Math.min(position, params.length);
+            values = new Object[params.length + last.length];
+            System.arraycopy(params, 0, values, 0, position);
+            System.arraycopy(last, 0, values, position, last.length);
+            System.arraycopy(params, position, values, position + last.length, params.length - position);
+        }else if(this.where != null){
+            builder.append(this.where);
+        }
+        if(this.groupBy != null){
+            builder.append(this.groupBy);
+        }
+        if(this.having != null){
+            builder.append(this.having);
+        }
+        builder.append(this.orderBy).append(" LIMIT ").append(size + 1);
+
+        List<E> items = new ArrayList<>(size);
+        Object[] lastKey = null;
+        // the shards each return their first rows, only the merged ones are in order
+        ResultSet resultSet = this.database instanceof ShardedDatabase
+            ? ((ShardedDatabase) this.database).scatter(builder.toString(), this.orderColumns, this.orderDirections, 0, size + 1, values)
+            : this.database.getResults(builder.toString(), values);
+        try {
+            while(resultSet.next()){
+                if(items.size() == size){
+                    return new Page<>(items, KeysetCursor.encode(lastKey));
+                }
+                items.add(mapper.map(resultSet));
+                lastKey = new Object[this.orderColumns.size()];
+                for(int i = 0; i < lastKey.length; i++){
+                    lastKey[i] = resultSet.getObject(label(this.orderColumns.get(i)));
+                }
+            }
+        } catch (Exception exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        } finally {
+            this.database.close(resultSet);
+        }
+        return new Page<>(items, null);
+    }
+
+    // "p.`level`" is read back from the result set as "level"
+    static String label(String column)
+    {
+        return column.substring(column.lastIndexOf('.') + 1).replace("`", "");
+    }
+
     @Override
     public void execute(Object... params) throws Exception
     {
         this.database.execute(this, params);
     }
 
+    @Override
+    public List<Object> executeAndGetKeys(Object... params) throws Exception
+    {
+        return this.database.executeAndGetKeys(this, params);
+    }
+
+    @Override
+    public void executeBatch(List<Object[]> params) throws Exception
+    {
+        this.database.executeBatch(this, params);
+    }
+
     @Override
     public String build()
     {
-        StringBuilder builder = new StringBuilder();
+        String built = this.built;
+        if(built != null && this.unionQuery == null){
+            return built;
+        }
+        String union = this.unionQuery != null ? this.unionQuery.build() : null;
+        String statement = this.select != null ? this.select
+            : this.update != null ? this.update
+            : this.delete != null ? this.delete
+            : this.insertInto;
+
+        int length = length(union) + 11 + length(statement);
+        if(this.insertInto != null && statement == this.insertInto){
+            length += length(this.onDuplicateKey);
+        }else{
+            length += length(this.join) + length(this.where) + length(this.groupBy) + length(this.having)
+                + length(this.orderBy) + length(this.limit);
+        }
+        StringBuilder builder = new StringBuilder(length);
 
-        if(this.unionQuery != null) {
-            builder.append(this.unionQuery)
+        if(union != null) {
+            builder.append(union)
                    .append(" UNION ")
                    .append(this.unionAll ? "ALL " : "");
         }
 
-        if(this.select != null){
-            builder.append(this.select);
-        }else if(this.update != null){
-            builder.append(this.update);
-        }else if(this.delete != null){
-            builder.append(this.delete);
-        }else if(this.insertInto != null){
-            builder.append(this.insertInto);
+        if(statement != null){
+            builder.append(statement);
+        }
+        if(statement != null && statement == this.insertInto){
             if(this.onDuplicateKey != null){
                 builder.append(this.onDuplicateKey);
             }
-            return builder.toString();
+            return this.built = builder.toString();
         }
 
         if(this.join != null){
@@ -423,7 +731,18 @@ public class QueryImpl implements Query<String>
         if(this.limit != null){
             builder.append(this.limit);
         }
-        return builder.toString();
+        return this.built = builder.toString();
+    }
+
+    private static int length(CharSequence sequence)
+    {
+        return sequence != null ? sequence.length() : 0;
+    }
+
+    @Override
+    public CompiledQuery compile()
+    {
+        return new CompiledQueryImpl(this.database, this.build(), this.tables, this.cacheTimeToLive);
     }
 
     @Override
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// what was recorded for one SQL fingerprint
+public final class QueryMetrics
+{
+    private final String fingerprint;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    QueryMetrics(String fingerprint)
+    {
+        this.fingerprint = fingerprint;
+    }
+
+    void success(long nanos)
+    {
+        this.calls.increment();
+        this.latency.record(nanos);
+    }
+
+    void error()
+    {
+        this.calls.increment();
+        this.errors.increment();
+    }
+
+    void rows(long rows)
+    {
+        this.rows.add(rows);
+    }
+
+    void reset()
+    {
+        this.calls.reset();
+        this.errors.reset();
+        this.rows.reset();
+        this.latency.reset();
+    }
+
+    public String getFingerprint()
+    {
+        return this.fingerprint;
+    }
+
+    public long getCalls()
+    {
+        return this.calls.sum();
+    }
+
+    public long getErrors()
+    {
+        return this.errors.sum();
+    }
+
+    // read from the result sets, or written by the updates
+    public long getRows()
+    {
+        return this.rows.sum();
+    }
+
+    public long getP50Nanos()
+    {
+        return this.latency.getPercentileNanos(50);
+    }
+
+    public long getP99Nanos()
+    {
+        return this.latency.getPercentileNanos(99);
+    }
+
+    public long getP999Nanos()
+    {
+        return this.latency.getPercentileNanos(99.9);
+    }
+
+    public long getMaxNanos()
+    {
+        return this.latency.getMaxNanos();
+    }
+
+    public double getMeanNanos()
+    {
+        return this.latency.getMeanNanos();
+    }
+
+    // the execution time of the successful calls
+    public LatencyHistogram latency()
+    {
+        return this.latency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QueryMetrics{" + this.fingerprint + ", calls=" + this.getCalls() + ", errors=" + this.getErrors()
+            + ", rows=" + this.getRows() + ", " + this.latency + "}";
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Query;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// results of SELECT queries by (SQL, parameters), LRU within a memory budget and dropped when a table they read changes
+final class ResultCache
+{
+    private final long maximumSize;
+    private final CacheStatistics statistics = new CacheStatistics();
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Key>> keysByTable = new HashMap<>();
+    private long size;
+    // bumped by every invalidation, a result read across one of them may already be stale
+    private long generation;
+
+    ResultCache(long maximumSize)
+    {
+        this.maximumSize = maximumSize;
+    }
+
+    synchronized DetachedResultSet get(String query, Object[] params)
+    {
+        Key key = new Key(query, params);
+        Entry entry = this.entries.get(key);
+        if (entry != null && System.currentTimeMillis() > entry.expiresAt) {
+            this.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            this.statistics.miss();
+            return null;
+        }
+        this.statistics.hit();
+        return entry.result;
+    }
+
+    synchronized long getGeneration()
+    {
+        return this.generation;
+    }
+
+    synchronized void put(String query, Object[] params, Set<String> tables, long timeToLive, DetachedResultSet result, long generation)
+    {
+        if (generation != this.generation || result.size() > this.maximumSize) {
+            return;
+        }
+        Key key = new Key(query, params);
+        this.remove(key);
+        this.entries.put(key, new Entry(result, new HashSet<>(tables), System.currentTimeMillis() + timeToLive));
+        this.size += result.size();
+        for (String table : tables) {
+            this.keysByTable.computeIfAbsent(table, ignored -> new HashSet<>()).add(key);
+        }
+        Iterator<Map.Entry<Key, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.size > this.maximumSize && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            this.forget(eldest.getKey(), eldest.getValue());
+            this.statistics.eviction();
+        }
+    }
+
+    synchronized void invalidate(Set<String> tables)
+    {
+        this.generation++;
+        if (tables.contains(Query.ANY_TABLE)) {
+            this.invalidateAll();
+            return;
+        }
+        for (String table : tables) {
+            Set<Key> keys = this.keysByTable.remove(table);
+            if (keys != null) {
+                for (Key key : keys) {
+                    this.remove(key);
+                }
+            }
+        }
+    }
+
+    synchronized void invalidateAll()
+    {
+        this.generation++;
+        this.entries.clear();
+        this.keysByTable.clear();
+        this.size = 0;
+    }
+
+    CacheStatistics getStatistics()
+    {
+        return this.statistics;
+    }
+
+    private void remove(Key key)
+    {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.forget(key, entry);
+        }
+    }
+
+    private void forget(Key key, Entry entry)
+    {
+        this.size -= entry.result.size();
+        for (String table : entry.tables) {
+            Set<Key> keys = this.keysByTable.get(table);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                this.keysByTable.remove(table);
+            }
+        }
+    }
+
+    private static final class Key
+    {
+        private final String query;
+        private final Object[] params;
+        private final int hash;
+
+        private Key(String query, Object[] params)
+        {
+            this.query = query;
+            this.params = params.clone();
+            this.hash = 31 * query.hashCode() + Arrays.deepHashCode(this.params);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+            return this.hash == key.hash && this.query.equals(key.query) && Arrays.deepEquals(this.params, key.params);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final DetachedResultSet result;
+        private final Set<String> tables;
+        private final long expiresAt;
+
+        private Entry(DetachedResultSet result, Set<String> tables, long expiresAt)
+        {
+            this.result = result;
+            this.tables = tables;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
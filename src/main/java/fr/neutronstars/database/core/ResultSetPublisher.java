@@ -0,0 +1,163 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Database;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+ * Cold publisher over a streamed result set: every subscriber opens its own cursor on its first request
+ * and rows are only read from the driver while the subscriber has outstanding demand. Rows are emitted by
+ * async tasks of at most BATCH rows, so a subscriber never keeps an async permit while others wait.
+ */
+public class ResultSetPublisher<E> implements Flow.Publisher<E>
+{
+    private static final int BATCH = 256;
+
+    private final Database<?, ?> database;
+    private final Callable<Stream<E>> opener;
+
+    public ResultSetPublisher(Database<?, ?> database, Callable<Stream<E>> opener)
+    {
+        this.database = database;
+        this.opener = opener;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super E> subscriber)
+    {
+        RowSubscription<E> subscription = new RowSubscription<>(this, subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private static final class RowSubscription<E> implements Flow.Subscription
+    {
+        private final ResultSetPublisher<E> publisher;
+        private final Flow.Subscriber<? super E> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private Stream<E> stream;
+        private Iterator<E> iterator;
+
+        private RowSubscription(ResultSetPublisher<E> publisher, Flow.Subscriber<? super E> subscriber)
+        {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0) {
+                this.invalidRequest = new IllegalArgumentException("Non-positive request : " + n);
+            } else {
+                this.demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            this.schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            this.cancelled = true;
+            this.schedule();
+        }
+
+        // only one drain runs at a time, the others just signal it to run again
+        private void schedule()
+        {
+            if (this.pending.getAndIncrement() == 0) {
+                this.submit();
+            }
+        }
+
+        private void submit()
+        {
+            this.publisher.database.supplyAsync(() -> {
+                this.drain();
+                return null;
+            });
+        }
+
+        // one batch per task, the next one is submitted again behind the tasks already waiting
+        private void drain()
+        {
+            int missed = this.pending.get();
+            try {
+                if (this.cancelled) {
+                    this.close();
+                    return;
+                }
+                if (this.invalidRequest != null) {
+                    this.terminate(this.invalidRequest);
+                    return;
+                }
+                if (this.iterator == null && this.demand.get() > 0) {
+                    this.stream = this.publisher.opener.call();
+                    this.iterator = this.stream.iterator();
+                }
+                long emitted = 0;
+                long requested = Math.min(this.demand.get(), BATCH);
+                while (emitted != requested && !this.cancelled) {
+                    if (!this.iterator.hasNext()) {
+                        this.close();
+                        this.cancelled = true;
+                        this.subscriber.onComplete();
+                        return;
+                    }
+                    this.subscriber.onNext(this.iterator.next());
+                    emitted++;
+                }
+                long remaining = this.demand.get();
+                if (emitted != 0 && remaining != Long.MAX_VALUE) {
+                    remaining = this.demand.addAndGet(-emitted);
+                }
+                // the drain stays pending while rows are still requested, a request meanwhile does not start another
+                if ((remaining > 0 && !this.cancelled) || this.pending.addAndGet(-missed) != 0) {
+                    this.submit();
+                }
+            } catch (Throwable throwable) {
+                this.terminate(throwable);
+            }
+        }
+
+        private void terminate(Throwable throwable)
+        {
+            this.close();
+            if (!this.cancelled) {
+                this.cancelled = true;
+                this.subscriber.onError(throwable);
+            }
+        }
+
+        private void close()
+        {
+            if (this.stream != null) {
+                this.stream.close();
+                this.stream = null;
+            }
+        }
+    }
+}
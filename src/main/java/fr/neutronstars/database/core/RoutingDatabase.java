@@ -0,0 +1,683 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.CompiledQuery;
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.Query;
+import fr.neutronstars.database.api.ResultMapper;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Sends the writes, the transactions and the reads following a write of the same thread to the primary, and
+ * every other read to the healthy replica with the fewest requests in flight. A replica lagging more than
+ * RoutingSettings#getMaximumReplicaLag() behind the primary, or whose replication stopped, gets no reads
+ * until it catches up; with no healthy replica the reads go to the primary.
+ *
+ * The read-your-writes window is kept per thread, a task given to supplyAsync() does not inherit it.
+ *
+ * The result caches of the replicas are cleared of the tables written through the primary, once when the
+ * write is sent, or when its transaction ends, and again after the lag a healthy replica may have replaying it.
+ */
+public final class RoutingDatabase implements Database<Connection, ResultSet>
+{
+    private static final AtomicInteger HEDGE_THREADS = new AtomicInteger();
+    // samples a replica needs before its p95 is trusted to hedge
+    private static final int HEDGE_MINIMUM_SAMPLES = 100;
+    private static final int HEDGE_REFRESH_SAMPLES = 128;
+    private static final Pattern VERSION = Pattern.compile("^(\\d+)\\.(\\d+)\\.(\\d+)");
+
+    public static RoutingDatabase create(Database<Connection, ResultSet> primary, List<Database<Connection, ResultSet>> replicas)
+    {
+        return create(primary, replicas, RoutingSettings.create());
+    }
+
+    public static RoutingDatabase create(Database<Connection, ResultSet> primary, List<Database<Connection, ResultSet>> replicas,
+                                         RoutingSettings settings)
+    {
+        return new RoutingDatabase(primary, replicas, settings);
+    }
+
+    private final Database<Connection, ResultSet> primary;
+    private final List<Replica> replicas;
+    private final RoutingSettings settings;
+    private final ThreadLocal<long[]> lastWrites = ThreadLocal.withInitial(() -> new long[1]);
+    private final Map<ResultSet, Replica> owners = new ConcurrentHashMap<>();
+    private final List<DatabaseImpl> cachedReplicas;
+    // the tables written by the transaction of each thread, the replica caches are cleared when it ends
+    private final ThreadLocal<Set<String>> transactionTables = ThreadLocal.withInitial(HashSet::new);
+    // the tables to clear again from the replica caches, with the time the replicas have replayed their writes by
+    private final Map<String, Long> staleTables = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private ScheduledExecutorService lagChecker;
+    private volatile ExecutorService hedgeExecutor;
+
+    private RoutingDatabase(Database<Connection, ResultSet> primary, List<Database<Connection, ResultSet>> replicas,
+                            RoutingSettings settings)
+    {
+        this.primary = primary;
+        List<Replica> list = new ArrayList<>(replicas.size());
+        List<DatabaseImpl> cached = new ArrayList<>();
+        for (Database<Connection, ResultSet> replica : replicas) {
+            list.add(new Replica(replica));
+            if (replica instanceof DatabaseImpl && ((DatabaseImpl) replica).getSettings().getResultCacheSize() > 0) {
+                cached.add((DatabaseImpl) replica);
+            }
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        this.cachedReplicas = cached;
+        this.settings = settings;
+    }
+
+    public Database<Connection, ResultSet> getPrimary()
+    {
+        return this.primary;
+    }
+
+    public List<Database<Connection, ResultSet>> getHealthyReplicas()
+    {
+        List<Database<Connection, ResultSet>> healthy = new ArrayList<>();
+        for (Replica replica : this.replicas) {
+            if (replica.healthy) {
+                healthy.add(replica.database);
+            }
+        }
+        return healthy;
+    }
+
+    public RoutingSettings getSettings()
+    {
+        return this.settings;
+    }
+
+    @Override
+    public Connection get()
+    {
+        return this.primary.get();
+    }
+
+    @Override
+    public Logger getLogger()
+    {
+        return this.primary.getLogger();
+    }
+
+    @Override
+    public synchronized Database<Connection, ResultSet> connect() throws Exception
+    {
+        this.primary.connect();
+        for (Replica replica : this.replicas) {
+            replica.database.connect();
+        }
+        if (!this.replicas.isEmpty() && this.lagChecker == null) {
+            this.lagChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "database-replica-lag");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = this.settings.getLagCheckInterval();
+            this.lagChecker.scheduleWithFixedDelay(this::checkLag, 0, interval, TimeUnit.MILLISECONDS);
+            if (!this.cachedReplicas.isEmpty()) {
+                this.lagChecker.scheduleWithFixedDelay(this::clearStaleTables, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized Database<Connection, ResultSet> reconnect() throws Exception
+    {
+        this.primary.reconnect();
+        for (Replica replica : this.replicas) {
+            replica.database.reconnect();
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized Database<Connection, ResultSet> disconnect() throws Exception
+    {
+        if (this.lagChecker != null) {
+            this.lagChecker.shutdownNow();
+            this.lagChecker = null;
+        }
+        if (this.hedgeExecutor != null) {
+            this.hedgeExecutor.shutdownNow();
+            this.hedgeExecutor = null;
+        }
+        Exception failure = null;
+        for (Replica replica : this.replicas) {
+            try {
+                replica.database.disconnect();
+            } catch (Exception exception) {
+                failure = exception;
+            }
+        }
+        this.primary.disconnect();
+        if (failure != null) {
+            throw failure;
+        }
+        return this;
+    }
+
+    @Override
+    public <E> Query<E> query(String table)
+    {
+        return this.query(table, null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E> Query<E> query(String table, String alias)
+    {
+        return (Query<E>) new QueryImpl(this, table + (alias != null ? " AS " + alias : ""));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E> Query<E> query(Query<?> query, String alias)
+    {
+        if (alias == null) {
+            throw new IllegalArgumentException("Alias is mandatory for nested queries.");
+        }
+        return (Query<E>) new QueryImpl(this, "(" + query.toString() + ") AS " + alias, query.getTables());
+    }
+
+    @Override
+    public ResultSet getResults(Query<?> query, Object... params) throws Exception
+    {
+        return this.read(database -> database.getResults(query, params));
+    }
+
+    @Override
+    public ResultSet getResults(String query, Object... params) throws Exception
+    {
+        return this.read(database -> database.getResults(query, params));
+    }
+
+    @Override
+    public ResultSet getResults(CompiledQuery query, Object... params) throws Exception
+    {
+        return this.read(database -> database.getResults(query, params));
+    }
+
+    @Override
+    public <E> Stream<E> stream(Query<?> query, ResultMapper<E> mapper, Object... params) throws Exception
+    {
+        return this.stream(database -> database.stream(query, mapper, params));
+    }
+
+    @Override
+    public <E> Stream<E> stream(CompiledQuery query, ResultMapper<E> mapper, Object... params) throws Exception
+    {
+        return this.stream(database -> database.stream(query, mapper, params));
+    }
+
+    @Override
+    public void execute(Query<?> query, Object... params) throws Exception
+    {
+        this.written(query.getTables());
+        this.primary.execute(query, params);
+    }
+
+    @Override
+    public void execute(CompiledQuery query, Object... params) throws Exception
+    {
+        this.written(query.getTables());
+        this.primary.execute(query, params);
+    }
+
+    @Override
+    public List<Object> executeAndGetKeys(Query<?> query, Object... params) throws Exception
+    {
+        this.written(query.getTables());
+        return this.primary.executeAndGetKeys(query, params);
+    }
+
+    @Override
+    public List<Object> executeAndGetKeys(CompiledQuery query, Object... params) throws Exception
+    {
+        this.written(query.getTables());
+        return this.primary.executeAndGetKeys(query, params);
+    }
+
+    @Override
+    public void executeBatch(Query<?> query, List<Object[]> params) throws Exception
+    {
+        this.written(query.getTables());
+        this.primary.executeBatch(query, params);
+    }
+
+    @Override
+    public void executeBatch(CompiledQuery query, List<Object[]> params) throws Exception
+    {
+        this.written(query.getTables());
+        this.primary.executeBatch(query, params);
+    }
+
+    @Override
+    public Database<Connection, ResultSet> close(ResultSet result) throws Exception
+    {
+        Replica replica = this.owners.remove(result);
+        if (replica == null) {
+            this.primary.close(result);
+            return this;
+        }
+        try {
+            replica.database.close(result);
+        } finally {
+            replica.outstanding.decrementAndGet();
+        }
+        return this;
+    }
+
+    @Override
+    public <V> CompletableFuture<V> supplyAsync(Callable<V> task)
+    {
+        return this.primary.supplyAsync(task);
+    }
+
+    @Override
+    public <V> V inTransaction(Callable<V> callback) throws Exception
+    {
+        try {
+            return this.primary.inTransaction(callback);
+        } finally {
+            this.ended();
+        }
+    }
+
+    @Override
+    public <V> V inTransaction(Isolation isolation, boolean readOnly, Callable<V> callback) throws Exception
+    {
+        try {
+            return this.primary.inTransaction(isolation, readOnly, callback);
+        } finally {
+            this.ended();
+        }
+    }
+
+    @Override
+    public Database<Connection, ResultSet> begin() throws Exception
+    {
+        this.primary.begin();
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> begin(Isolation isolation, boolean readOnly) throws Exception
+    {
+        this.primary.begin(isolation, readOnly);
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> commit() throws Exception
+    {
+        try {
+            this.primary.commit();
+        } finally {
+            this.ended();
+        }
+        // what the transaction wrote is not on the replicas yet
+        this.written();
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> rollback() throws Exception
+    {
+        try {
+            this.primary.rollback();
+        } finally {
+            this.ended();
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isInTransaction()
+    {
+        return this.primary.isInTransaction();
+    }
+
+    private void written()
+    {
+        this.lastWrites.get()[0] = System.nanoTime();
+    }
+
+    private void written(Set<String> tables)
+    {
+        this.written();
+        if (this.cachedReplicas.isEmpty()) {
+            return;
+        }
+        if (this.primary.isInTransaction()) {
+            this.transactionTables.get().addAll(tables);
+        } else {
+            this.clearReplicaCaches(tables);
+        }
+    }
+
+    // the outermost transaction of the thread ended, a rollback clears the caches for nothing but is rare
+    private void ended()
+    {
+        if (this.cachedReplicas.isEmpty() || this.primary.isInTransaction()) {
+            return;
+        }
+        Set<String> tables = this.transactionTables.get();
+        if (!tables.isEmpty()) {
+            this.clearReplicaCaches(tables);
+            tables.clear();
+        }
+    }
+
+    private void clearReplicaCaches(Set<String> tables)
+    {
+        for (DatabaseImpl replica : this.cachedReplicas) {
+            replica.invalidateCachedResults(tables);
+        }
+        // a healthy replica replays the write within the maximum lag, plus one check interval to notice it
+        long replayed = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.settings.getMaximumReplicaLag())
+            + TimeUnit.MILLISECONDS.toNanos(this.settings.getLagCheckInterval());
+        for (String table : tables) {
+            this.staleTables.put(table, replayed);
+        }
+    }
+
+    // runs on the lag checker thread
+    private void clearStaleTables()
+    {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Long> entry : this.staleTables.entrySet()) {
+            if (now - entry.getValue() >= 0 && this.staleTables.remove(entry.getKey(), entry.getValue())) {
+                for (DatabaseImpl replica : this.cachedReplicas) {
+                    replica.invalidateCachedResults(Collections.singleton(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    // null when the read must see the primary
+    private Replica choose(Replica excluded)
+    {
+        long lastWrite = this.lastWrites.get()[0];
+        if (this.replicas.isEmpty() || this.primary.isInTransaction()
+            || (lastWrite != 0 && System.nanoTime() - lastWrite < this.settings.getStickiness())) {
+            return null;
+        }
+        // least outstanding requests, ties broken round robin so an idle cluster still spreads its reads
+        int size = this.replicas.size();
+        int start = Math.floorMod(this.next.getAndIncrement(), size);
+        Replica chosen = null;
+        for (int i = 0; i < size; i++) {
+            Replica replica = this.replicas.get((start + i) % size);
+            if (replica.healthy && replica != excluded
+                && (chosen == null || replica.outstanding.get() < chosen.outstanding.get())) {
+                chosen = replica;
+            }
+        }
+        return chosen;
+    }
+
+    private ResultSet read(Read read) throws Exception
+    {
+        Replica replica = this.choose(null);
+        if (replica == null) {
+            return read.run(this.primary);
+        }
+        if (this.settings.isHedgedReads()) {
+            long delay = replica.getHedgeDelay();
+            Replica second = delay > 0 ? this.choose(replica) : null;
+            if (second != null) {
+                return this.hedge(read, replica, second, delay);
+            }
+        }
+        return this.read(read, replica);
+    }
+
+    private ResultSet read(Read read, Replica replica) throws Exception
+    {
+        replica.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        ResultSet resultSet;
+        try {
+            resultSet = read.run(replica.database);
+        } catch (Exception exception) {
+            replica.outstanding.decrementAndGet();
+            throw exception;
+        }
+        replica.record(System.nanoTime() - start);
+        // the replica keeps the request until the result set is closed
+        this.owners.put(resultSet, replica);
+        return resultSet;
+    }
+
+    // asks a second replica when the first one is slower than its p95, the first answer wins and the other is closed
+    private ResultSet hedge(Read read, Replica first, Replica second, long delay) throws Exception
+    {
+        ExecutorService executor = this.hedgeExecutor();
+        Future<ResultSet> initial = executor.submit(() -> this.read(read, first));
+        try {
+            return initial.get(delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ignored) {
+            // the second request is sent below
+        } catch (ExecutionException exception) {
+            throw unwrap(exception);
+        }
+        CompletableFuture<ResultSet> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        Future<ResultSet> hedged = executor.submit(() -> this.read(read, second));
+        for (Future<ResultSet> future : Arrays.asList(initial, hedged)) {
+            executor.execute(() -> {
+                try {
+                    ResultSet resultSet = future.get();
+                    if (!winner.complete(resultSet)) {
+                        this.close(resultSet);
+                    }
+                } catch (Exception exception) {
+                    if (failures.incrementAndGet() == 2) {
+                        winner.completeExceptionally(exception instanceof ExecutionException ? exception.getCause() : exception);
+                    }
+                }
+            });
+        }
+        try {
+            return winner.get();
+        } catch (ExecutionException exception) {
+            throw unwrap(exception);
+        }
+    }
+
+    private static Exception unwrap(ExecutionException exception)
+    {
+        Throwable cause = exception.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return exception;
+    }
+
+    private ExecutorService hedgeExecutor()
+    {
+        ExecutorService executor = this.hedgeExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if ((executor = this.hedgeExecutor) == null) {
+                    this.hedgeExecutor = executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "database-hedge-" + HEDGE_THREADS.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    private <E> Stream<E> stream(StreamRead<E> read) throws Exception
+    {
+        Replica replica = this.choose(null);
+        if (replica == null) {
+            return read.run(this.primary);
+        }
+        replica.outstanding.incrementAndGet();
+        Stream<E> stream;
+        try {
+            stream = read.run(replica.database);
+        } catch (Exception exception) {
+            replica.outstanding.decrementAndGet();
+            throw exception;
+        }
+        return stream.onClose(replica.outstanding::decrementAndGet);
+    }
+
+    private void checkLag()
+    {
+        for (Replica replica : this.replicas) {
+            boolean healthy;
+            try {
+                Long lag = lag(replica);
+                // null when the replication threads are stopped
+                healthy = lag != null && lag <= this.settings.getMaximumReplicaLag();
+            } catch (Exception exception) {
+                this.getLogger().log(Level.WARNING, "Cannot read the lag of a replica : " + exception.getMessage());
+                healthy = false;
+            }
+            if (replica.healthy != healthy) {
+                replica.healthy = healthy;
+                this.getLogger().log(healthy ? Level.INFO : Level.WARNING,
+                    healthy ? "Replica caught up, it receives reads again." : "Replica lagging behind, it no longer receives reads.");
+            }
+        }
+    }
+
+    private static Long lag(Replica replica) throws Exception
+    {
+        Database<Connection, ResultSet> database = replica.database;
+        if (replica.sourceNaming == null) {
+            replica.sourceNaming = hasSourceNaming(version(database));
+        }
+        boolean sourceNaming = replica.sourceNaming;
+        ResultSet resultSet = database.getResults(sourceNaming ? "SHOW REPLICA STATUS" : "SHOW SLAVE STATUS");
+        try {
+            if (!resultSet.next()) {
+                return null;
+            }
+            long lag = resultSet.getLong(sourceNaming ? "Seconds_Behind_Source" : "Seconds_Behind_Master");
+            return resultSet.wasNull() ? null : lag;
+        } finally {
+            database.close(resultSet);
+        }
+    }
+
+    private static String version(Database<Connection, ResultSet> database) throws Exception
+    {
+        ResultSet resultSet = database.getResults("SELECT VERSION()");
+        try {
+            return resultSet.next() ? resultSet.getString(1) : "";
+        } finally {
+            database.close(resultSet);
+        }
+    }
+
+    // SHOW REPLICA STATUS and Seconds_Behind_Source came with MySQL 8.0.22, MariaDB still names the column after the master
+    static boolean hasSourceNaming(String version)
+    {
+        Matcher matcher = VERSION.matcher(version);
+        if (!matcher.find() || version.toLowerCase().contains("mariadb")) {
+            return false;
+        }
+        int major = Integer.parseInt(matcher.group(1));
+        int minor = Integer.parseInt(matcher.group(2));
+        int patch = Integer.parseInt(matcher.group(3));
+        return major > 8 || major == 8 && (minor > 0 || patch >= 22);
+    }
+
+    @FunctionalInterface
+    private interface Read
+    {
+        ResultSet run(Database<Connection, ResultSet> database) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface StreamRead<E>
+    {
+        Stream<E> run(Database<Connection, ResultSet> database) throws Exception;
+    }
+
+    private static final class Replica
+    {
+        private final Database<Connection, ResultSet> database;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong samples = new AtomicLong();
+        private volatile boolean healthy = true;
+        private volatile long hedgeDelay;
+        // whether the server has the replica statements, read once from its version by the lag checker
+        private volatile Boolean sourceNaming;
+
+        private Replica(Database<Connection, ResultSet> database)
+        {
+            this.database = database;
+        }
+
+        private void record(long nanos)
+        {
+            this.latency.record(nanos);
+            long count = this.samples.incrementAndGet();
+            // the percentile walks every bucket, it is only refreshed now and then
+            if (count >= HEDGE_MINIMUM_SAMPLES && count % HEDGE_REFRESH_SAMPLES == 0) {
+                this.hedgeDelay = this.latency.getPercentileNanos(95);
+            }
+        }
+
+        // 0 until enough reads were timed
+        private long getHedgeDelay()
+        {
+            return this.hedgeDelay;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.concurrent.TimeUnit;
+
+public class RoutingSettings
+{
+    public static RoutingSettings create()
+    {
+        return new RoutingSettings();
+    }
+
+    private long stickiness = TimeUnit.SECONDS.toNanos(1);
+    private long maximumReplicaLag = 30;
+    private long lagCheckInterval = TimeUnit.SECONDS.toMillis(5);
+    private boolean hedgedReads;
+
+    private RoutingSettings() {}
+
+    // how long the reads of a thread stay on the primary after it wrote, so it reads its own writes
+    public RoutingSettings stickiness(long duration, TimeUnit unit)
+    {
+        this.stickiness = unit.toNanos(duration);
+        return this;
+    }
+
+    // replicas further behind than this stop receiving reads until they catch up
+    public RoutingSettings maximumReplicaLag(long lag, TimeUnit unit)
+    {
+        this.maximumReplicaLag = unit.toSeconds(lag);
+        return this;
+    }
+
+    public RoutingSettings lagCheckInterval(long interval, TimeUnit unit)
+    {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid lag check interval : " + interval);
+        }
+        this.lagCheckInterval = unit.toMillis(interval);
+        return this;
+    }
+
+    // a read slower than the p95 of its replica is sent again to another one, the first answer wins
+    public RoutingSettings hedgedReads(boolean enabled)
+    {
+        this.hedgedReads = enabled;
+        return this;
+    }
+
+    public long getStickiness()
+    {
+        return this.stickiness;
+    }
+
+    public long getMaximumReplicaLag()
+    {
+        return this.maximumReplicaLag;
+    }
+
+    public long getLagCheckInterval()
+    {
+        return this.lagCheckInterval;
+    }
+
+    public boolean isHedgedReads()
+    {
+        return this.hedgedReads;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Lazy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Maps the rows of one result set shape to an entity. The column indexes are resolved when the mapper
+ * is compiled and every column is read with its typed getter then stored straight into the field,
+ * the whole row being a single (Object, ResultSet) -> void method handle chain.
+ */
+public final class RowMapper<T>
+{
+    private static final Map<Class<?>, String> GETTERS = new HashMap<>();
+    private static final MethodHandle LAZY_OF;
+
+    static {
+        try {
+            LAZY_OF = MethodHandles.publicLookup().findStatic(Lazy.class, "of", MethodType.methodType(Lazy.class, Object.class));
+        } catch (ReflectiveOperationException exception) {
+            throw new ExceptionInInitializerError(exception);
+        }
+        GETTERS.put(boolean.class, "getBoolean");
+        GETTERS.put(byte.class, "getByte");
+        GETTERS.put(short.class, "getShort");
+        GETTERS.put(int.class, "getInt");
+        GETTERS.put(long.class, "getLong");
+        GETTERS.put(float.class, "getFloat");
+        GETTERS.put(double.class, "getDouble");
+        GETTERS.put(String.class, "getString");
+        GETTERS.put(BigDecimal.class, "getBigDecimal");
+        GETTERS.put(byte[].class, "getBytes");
+        GETTERS.put(Date.class, "getDate");
+        GETTERS.put(Time.class, "getTime");
+        GETTERS.put(Timestamp.class, "getTimestamp");
+    }
+
+    static <T> RowMapper<T> compile(EntityMetadata<T> metadata, String[] labels)
+    {
+        MethodHandle row = null;
+        for (EntityMetadata.ColumnMetadata column : metadata.getColumns()) {
+            int index = indexOf(labels, column.getName());
+            if (index == 0) {
+                // not selected, the field keeps its default value
+                continue;
+            }
+            MethodHandle reader = reader(column.getValueType(), index);
+            if (column.isLazy()) {
+                // selected anyway, the value is already there
+                reader = MethodHandles.filterReturnValue(reader.asType(MethodType.methodType(Object.class, ResultSet.class)), LAZY_OF);
+            }
+            MethodHandle store = MethodHandles.filterArguments(column.getTypedSetter(), 1, reader);
+            row = row == null ? store : MethodHandles.foldArguments(store, row);
+        }
+        if (row == null) {
+            row = MethodHandles.empty(MethodType.methodType(void.class, Object.class, ResultSet.class));
+        }
+        return new RowMapper<>(metadata, row);
+    }
+
+    private static int indexOf(String[] labels, String name)
+    {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equalsIgnoreCase(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // (ResultSet) -> type, reading the column at the given index
+    static MethodHandle reader(Class<?> type, int index)
+    {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            String getter = GETTERS.get(type);
+            MethodHandle handle;
+            if (getter != null) {
+                handle = lookup.findVirtual(ResultSet.class, getter, MethodType.methodType(type, int.class));
+                return MethodHandles.insertArguments(handle, 1, index);
+            }
+            if (type == Object.class || type.isPrimitive()) {
+                handle = lookup.findVirtual(ResultSet.class, "getObject", MethodType.methodType(Object.class, int.class));
+                handle = MethodHandles.insertArguments(handle, 1, index);
+            } else {
+                // wrappers and java.time types keep their SQL NULL
+                handle = lookup.findVirtual(
+                    ResultSet.class, "getObject", MethodType.methodType(Object.class, int.class, Class.class)
+                );
+                handle = MethodHandles.insertArguments(handle, 1, index, type);
+            }
+            return handle.asType(MethodType.methodType(type, ResultSet.class));
+        } catch (ReflectiveOperationException exception) {
+            throw new IllegalStateException(exception.getMessage(), exception);
+        }
+    }
+
+    private final EntityMetadata<T> metadata;
+    private final MethodHandle row;
+
+    private RowMapper(EntityMetadata<T> metadata, MethodHandle row)
+    {
+        this.metadata = metadata;
+        this.row = row;
+    }
+
+    public T map(ResultSet resultSet) throws Throwable
+    {
+        T instance = this.metadata.newInstance();
+        this.row.invokeExact((Object) instance, resultSet);
+        return instance;
+    }
+}
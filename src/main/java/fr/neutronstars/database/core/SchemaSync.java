@@ -0,0 +1,345 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.annotation.Column;
+import fr.neutronstars.database.api.annotation.Index;
+import fr.neutronstars.database.api.annotation.Table;
+import fr.neutronstars.database.api.exception.MissingAnnotationException;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+
+/*
+ * Compares the indexes declared by the entities, with @Column(key = ...) and @Index, with those found in
+ * information_schema.STATISTICS and creates the missing ones. Indexes the entities do not declare are left
+ * alone. diff() only reports, apply() runs the ALTER TABLE statements too, online by default: the table
+ * keeps accepting reads and writes while InnoDB builds the index.
+ */
+public final class SchemaSync
+{
+    private static final int MAXIMUM_NAME_LENGTH = 64;
+    static final String INDEXES_QUERY = "SELECT INDEX_NAME, NON_UNIQUE, COLUMN_NAME, INDEX_TYPE FROM information_schema.STATISTICS"
+        + " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? ORDER BY INDEX_NAME, SEQ_IN_INDEX";
+    // the part of a functional index, it has no column and matches none, the columns after it keep their position
+    static final String EXPRESSION = "(expression)";
+
+    public static SchemaSync create(Database<Connection, ResultSet> database)
+    {
+        return new SchemaSync(database);
+    }
+
+    private final Database<Connection, ResultSet> database;
+    private boolean online = true;
+
+    private SchemaSync(Database<Connection, ResultSet> database)
+    {
+        this.database = database;
+    }
+
+    // ALGORITHM=INPLACE, LOCK=NONE on the ALTER TABLE statements, the server refuses them rather than copy the table
+    public SchemaSync online(boolean online)
+    {
+        this.online = online;
+        return this;
+    }
+
+    public List<IndexChange> diff(Class<?>... types) throws Exception
+    {
+        List<IndexChange> changes = new ArrayList<>();
+        for (Class<?> type : types) {
+            EntityMetadata<?> metadata = EntityMetadata.of(type);
+            String table = metadata.getTableName();
+            List<IndexDefinition> existing = readIndexes(this.database, table);
+            Table annotation = type.getAnnotation(Table.class);
+            if (annotation != null) {
+                this.checkEngine(table, annotation);
+            }
+            List<IndexDefinition> missing = new ArrayList<>();
+            for (IndexDefinition declared : declaredIndexes(metadata)) {
+                if (!declared.isSatisfiedBy(existing)) {
+                    missing.add(declared);
+                }
+            }
+            changes.addAll(this.alterStatements(table, missing));
+        }
+        return changes;
+    }
+
+    // the changes applied, in order, the first failing statement stops the synchronization
+    public List<IndexChange> apply(Class<?>... types) throws Exception
+    {
+        List<IndexChange> changes = this.diff(types);
+        for (IndexChange change : changes) {
+            this.database.getLogger().log(Level.INFO, "Creating index : " + change.getSql());
+            this.database.execute(new CompiledQueryImpl(this.database, change.getSql(), Collections.singleton(change.getTable()), 0));
+        }
+        return changes;
+    }
+
+    static List<IndexDefinition> declaredIndexes(EntityMetadata<?> metadata) throws MissingAnnotationException
+    {
+        List<IndexDefinition> indexes = new ArrayList<>();
+        List<String> primaryKeys = new ArrayList<>();
+        for (EntityMetadata.ColumnMetadata column : metadata.getPrimaryKeys()) {
+            primaryKeys.add(column.getName());
+        }
+        if (!primaryKeys.isEmpty()) {
+            indexes.add(new IndexDefinition("PRIMARY", Column.Key.PRIMARY, primaryKeys));
+        }
+        for (EntityMetadata.ColumnMetadata column : metadata.getColumns()) {
+            Column.Key key = column.getColumn().key();
+            if (key != Column.Key.PRIMARY && key != Column.Key.NONE) {
+                List<String> columns = Collections.singletonList(column.getName());
+                indexes.add(new IndexDefinition(defaultName(key, columns), key, columns));
+            }
+        }
+        for (Index index : metadata.getType().getAnnotationsByType(Index.class)) {
+            if (index.columns().length == 0) {
+                throw new IllegalArgumentException("An @Index of " + metadata.getType().getName() + " class has no column !");
+            }
+            if (index.key() == Column.Key.NONE || index.key() == Column.Key.PRIMARY) {
+                throw new IllegalArgumentException("An @Index cannot be " + index.key() + ", on " + metadata.getType().getName() + " class !");
+            }
+            List<String> columns = Arrays.asList(index.columns());
+            indexes.add(new IndexDefinition(index.name().isEmpty() ? defaultName(index.key(), columns) : index.name(), index.key(), columns));
+        }
+        return indexes;
+    }
+
+    // "idx_owner_level", cut to the 64 characters MySQL allows
+    static String defaultName(Column.Key key, List<String> columns)
+    {
+        String prefix = key == Column.Key.UNIQUE ? "uk_" : key == Column.Key.FULLTEXT ? "ft_" : key == Column.Key.SPATIAL ? "sp_" : "idx_";
+        String name = prefix + String.join("_", columns).toLowerCase(Locale.ROOT);
+        return name.length() > MAXIMUM_NAME_LENGTH ? name.substring(0, MAXIMUM_NAME_LENGTH) : name;
+    }
+
+    static List<IndexDefinition> readIndexes(Database<Connection, ResultSet> database, String table) throws Exception
+    {
+        ResultSet resultSet = database.getResults(INDEXES_QUERY, table);
+        try {
+            return readIndexes(resultSet);
+        } finally {
+            database.close(resultSet);
+        }
+    }
+
+    // the rows of INDEXES_QUERY
+    static List<IndexDefinition> readIndexes(ResultSet resultSet) throws SQLException
+    {
+        Map<String, IndexDefinition> indexes = new LinkedHashMap<>();
+        while (resultSet.next()) {
+            String name = resultSet.getString(1);
+            IndexDefinition index = indexes.get(name);
+            if (index == null) {
+                String type = resultSet.getString(4);
+                Column.Key key = name.equals("PRIMARY") ? Column.Key.PRIMARY
+                    : "FULLTEXT".equalsIgnoreCase(type) ? Column.Key.FULLTEXT
+                    : "SPATIAL".equalsIgnoreCase(type) ? Column.Key.SPATIAL
+                    : resultSet.getInt(2) == 0 ? Column.Key.UNIQUE
+                    : Column.Key.INDEX;
+                indexes.put(name, index = new IndexDefinition(name, key, new ArrayList<>()));
+            }
+            String column = resultSet.getString(3);
+            index.columns.add(column != null ? column : EXPRESSION);
+        }
+        return new ArrayList<>(indexes.values());
+    }
+
+    // changing the engine copies the whole table, it is only reported
+    private void checkEngine(String table, Table annotation) throws Exception
+    {
+        ResultSet resultSet = this.database.getResults(
+            "SELECT ENGINE FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?",
+            table
+        );
+        try {
+            if (resultSet.next() && !annotation.engine().name().equalsIgnoreCase(resultSet.getString(1))) {
+                this.database.getLogger().log(Level.WARNING, "Table " + table + " uses the " + resultSet.getString(1)
+                    + " engine, " + annotation.engine() + " is declared.");
+            }
+        } finally {
+            this.database.close(resultSet);
+        }
+    }
+
+    /*
+     * One statement for the primary, unique and plain indexes of a table, built together by a single ALTER.
+     * InnoDB builds FULLTEXT and SPATIAL indexes one at a time and cannot let writes through meanwhile, they
+     * get a statement each and only keep the table readable.
+     */
+    private List<IndexChange> alterStatements(String table, List<IndexDefinition> missing)
+    {
+        List<IndexChange> changes = new ArrayList<>();
+        List<IndexDefinition> online = new ArrayList<>();
+        for (IndexDefinition index : missing) {
+            if (index.key == Column.Key.FULLTEXT || index.key == Column.Key.SPATIAL) {
+                changes.add(this.alter(table, Collections.singletonList(index), "SHARED"));
+            } else {
+                online.add(index);
+            }
+        }
+        if (!online.isEmpty()) {
+            changes.add(0, this.alter(table, online, "NONE"));
+        }
+        return changes;
+    }
+
+    private IndexChange alter(String table, List<IndexDefinition> indexes, String lock)
+    {
+        StringBuilder builder = new StringBuilder("ALTER TABLE `").append(table).append('`');
+        for (int i = 0; i < indexes.size(); i++) {
+            builder.append(i == 0 ? " " : ", ").append("ADD ").append(indexes.get(i).definition());
+        }
+        if (this.online) {
+            builder.append(", ALGORITHM=INPLACE, LOCK=").append(lock);
+        }
+        return new IndexChange(table, indexes, builder.toString());
+    }
+
+    public static final class IndexChange
+    {
+        private final String table;
+        private final List<String> indexes;
+        private final String sql;
+
+        private IndexChange(String table, List<IndexDefinition> indexes, String sql)
+        {
+            this.table = table;
+            List<String> names = new ArrayList<>(indexes.size());
+            for (IndexDefinition index : indexes) {
+                names.add(index.name);
+            }
+            this.indexes = Collections.unmodifiableList(names);
+            this.sql = sql;
+        }
+
+        public String getTable()
+        {
+            return this.table;
+        }
+
+        // names of the indexes created by the statement
+        public List<String> getIndexes()
+        {
+            return this.indexes;
+        }
+
+        public String getSql()
+        {
+            return this.sql;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.sql;
+        }
+    }
+
+    static final class IndexDefinition
+    {
+        final String name;
+        final Column.Key key;
+        final List<String> columns;
+
+        IndexDefinition(String name, Column.Key key, List<String> columns)
+        {
+            this.name = name;
+            this.key = key;
+            this.columns = columns;
+        }
+
+        /*
+         * A unique index is only replaced by one enforcing the same uniqueness. A plain index is also served by
+         * any B-tree index starting with its columns, MySQL reads the leftmost prefix of an index.
+         */
+        boolean isSatisfiedBy(List<IndexDefinition> existing)
+        {
+            for (IndexDefinition index : existing) {
+                boolean satisfied;
+                switch (this.key) {
+                    case PRIMARY:
+                    case FULLTEXT:
+                    case SPATIAL:
+                        satisfied = index.key == this.key && sameColumns(index.columns, this.columns);
+                        break;
+                    case UNIQUE:
+                        satisfied = (index.key == Column.Key.UNIQUE || index.key == Column.Key.PRIMARY)
+                            && sameColumns(index.columns, this.columns);
+                        break;
+                    default:
+                        satisfied = index.key != Column.Key.FULLTEXT && index.key != Column.Key.SPATIAL
+                            && index.columns.size() >= this.columns.size()
+                            && sameColumns(index.columns.subList(0, this.columns.size()), this.columns);
+                }
+                if (satisfied) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean sameColumns(List<String> left, List<String> right)
+        {
+            if (left.size() != right.size()) {
+                return false;
+            }
+            for (int i = 0; i < left.size(); i++) {
+                if (!left.get(i).equalsIgnoreCase(right.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // "UNIQUE INDEX `uk_name` (`name`)"
+        String definition()
+        {
+            StringBuilder builder = new StringBuilder();
+            switch (this.key) {
+                case PRIMARY:
+                    builder.append("PRIMARY KEY");
+                    break;
+                case UNIQUE:
+                    builder.append("UNIQUE INDEX `").append(this.name).append('`');
+                    break;
+                case FULLTEXT:
+                case SPATIAL:
+                    builder.append(this.key).append(" INDEX `").append(this.name).append('`');
+                    break;
+                default:
+                    builder.append("INDEX `").append(this.name).append('`');
+            }
+            builder.append(" (");
+            for (int i = 0; i < this.columns.size(); i++) {
+                builder.append(i == 0 ? "" : ",").append('`').append(this.columns.get(i).replace("`", "")).append('`');
+            }
+            return builder.append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Size and time bounded cache split into lock stripes, each one a segmented LRU: new entries go to a
+ * probation segment and only move to the protected segment when read again, so a scan of one-off keys
+ * cannot flush the hot entries.
+ */
+public class SegmentedCache<K, V>
+{
+    private static final int MAXIMUM_STRIPES = 16;
+
+    private final Stripe<K, V>[] stripes;
+    private final long timeToLive;
+    private final CacheStatistics statistics = new CacheStatistics();
+
+    @SuppressWarnings("unchecked")
+    public SegmentedCache(int maximumSize, long timeToLive, TimeUnit unit)
+    {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Invalid cache size : " + maximumSize);
+        }
+        int count = Integer.highestOneBit(Math.min(MAXIMUM_STRIPES, maximumSize));
+        this.stripes = (Stripe<K, V>[]) new Stripe<?, ?>[count];
+        for (int i = 0; i < count; i++) {
+            // spreads the remainder so the stripes add up to the maximum size
+            this.stripes[i] = new Stripe<>(maximumSize / count + (i < maximumSize % count ? 1 : 0), this.statistics);
+        }
+        this.timeToLive = unit.toNanos(timeToLive);
+    }
+
+    public V get(K key)
+    {
+        V value = this.stripe(key).get(key, this.timeToLive);
+        if (value == null) {
+            this.statistics.miss();
+        } else {
+            this.statistics.hit();
+        }
+        return value;
+    }
+
+    public void put(K key, V value)
+    {
+        this.stripe(key).put(key, value);
+    }
+
+    // changes whenever a put or an invalidation reaches the stripe of the key
+    public long getVersion(K key)
+    {
+        return this.stripe(key).getVersion();
+    }
+
+    // a value read before the version was taken, skipped when a write may have made it stale since
+    public boolean putIfUnchanged(K key, V value, long version)
+    {
+        return this.stripe(key).putIfUnchanged(key, value, version);
+    }
+
+    public void invalidate(K key)
+    {
+        this.stripe(key).remove(key);
+    }
+
+    public void invalidateAll()
+    {
+        for (Stripe<K, V> stripe : this.stripes) {
+            stripe.clear();
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Stripe<K, V> stripe : this.stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public CacheStatistics getStatistics()
+    {
+        return this.statistics;
+    }
+
+    private Stripe<K, V> stripe(K key)
+    {
+        int hash = key.hashCode();
+        return this.stripes[(hash ^ (hash >>> 16)) & (this.stripes.length - 1)];
+    }
+
+    private static final class Stripe<K, V>
+    {
+        private final int capacity;
+        private final int protectedCapacity;
+        private final CacheStatistics statistics;
+        private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<K, Node<V>> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private long version;
+
+        private Stripe(int capacity, CacheStatistics statistics)
+        {
+            this.capacity = capacity;
+            this.protectedCapacity = Math.max(1, capacity * 4 / 5);
+            this.statistics = statistics;
+        }
+
+        private synchronized V get(K key, long timeToLive)
+        {
+            Node<V> node = this.protectedSegment.get(key);
+            if (node == null) {
+                node = this.probation.remove(key);
+                if (node == null) {
+                    return null;
+                }
+                this.protectedSegment.put(key, node);
+                if (this.protectedSegment.size() > this.protectedCapacity) {
+                    // the least recently used protected entry gets a second chance in probation
+                    Iterator<Map.Entry<K, Node<V>>> iterator = this.protectedSegment.entrySet().iterator();
+                    Map.Entry<K, Node<V>> eldest = iterator.next();
+                    iterator.remove();
+                    this.probation.put(eldest.getKey(), eldest.getValue());
+                }
+            }
+            if (timeToLive > 0 && System.nanoTime() - node.writtenAt > timeToLive) {
+                this.protectedSegment.remove(key);
+                this.probation.remove(key);
+                return null;
+            }
+            return node.value;
+        }
+
+        private synchronized long getVersion()
+        {
+            return this.version;
+        }
+
+        private synchronized boolean putIfUnchanged(K key, V value, long version)
+        {
+            if (version != this.version) {
+                return false;
+            }
+            this.store(key, value);
+            return true;
+        }
+
+        private synchronized void put(K key, V value)
+        {
+            this.version++;
+            this.store(key, value);
+        }
+
+        private void store(K key, V value)
+        {
+            Node<V> node = new Node<>(value);
+            if (this.protectedSegment.containsKey(key)) {
+                this.protectedSegment.put(key, node);
+                return;
+            }
+            this.probation.put(key, node);
+            while (this.probation.size() + this.protectedSegment.size() > this.capacity) {
+                LinkedHashMap<K, Node<V>> victims = this.probation.isEmpty() ? this.protectedSegment : this.probation;
+                Iterator<K> iterator = victims.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+                this.statistics.eviction();
+            }
+        }
+
+        private synchronized void remove(K key)
+        {
+            this.version++;
+            this.protectedSegment.remove(key);
+            this.probation.remove(key);
+        }
+
+        private synchronized void clear()
+        {
+            this.version++;
+            this.protectedSegment.clear();
+            this.probation.clear();
+        }
+
+        private synchronized int size()
+        {
+            return this.probation.size() + this.protectedSegment.size();
+        }
+    }
+
+    private static final class Node<V>
+    {
+        private final V value;
+        private final long writtenAt = System.nanoTime();
+
+        private Node(V value)
+        {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.CompiledQuery;
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.Query;
+import fr.neutronstars.database.api.ResultMapper;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/*
+ * Spreads the rows of every table over several databases. The repositories send find() on the shard key and
+ * persist() to the one shard owning the key, chosen on a consistent hash ring so adding a shard at the end of
+ * the list only moves about 1/n of the keys. The shards are identified by their position: the list must
+ * always be given in the same order.
+ *
+ * Other reads run on every shard in parallel and their rows are merged: in order when the query has an
+ * ORDER BY, whose columns must then be selected, and with its LIMIT applied to the merged rows. Aggregates
+ * and GROUP BY are not recombined, each shard gives its own rows. UPDATE and DELETE run on every shard, an
+ * INSERT has to go through a repository or getShard(key).
+ *
+ * A transaction is opened on every shard and committed one shard after the other, the commit is not atomic.
+ */
+public final class ShardedDatabase implements Database<Connection, ResultSet>
+{
+    private static final int VIRTUAL_NODES = 128;
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    public static ShardedDatabase create(List<Database<Connection, ResultSet>> shards)
+    {
+        return create(shards, VIRTUAL_NODES);
+    }
+
+    // more virtual nodes spread the keys more evenly, at the cost of a larger ring
+    public static ShardedDatabase create(List<Database<Connection, ResultSet>> shards, int virtualNodes)
+    {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A sharded database needs at least one shard.");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Invalid number of virtual nodes : " + virtualNodes);
+        }
+        return new ShardedDatabase(shards, virtualNodes);
+    }
+
+    private final List<Database<Connection, ResultSet>> shards;
+    private final List<LatencyHistogram> latencies;
+    // sorted hashes of the virtual nodes and the shard owning each of them
+    private final long[] ring;
+    private final int[] owners;
+    private volatile ExecutorService executor;
+
+    private ShardedDatabase(List<Database<Connection, ResultSet>> shards, int virtualNodes)
+    {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        List<LatencyHistogram> latencies = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            latencies.add(new LatencyHistogram());
+        }
+        this.latencies = Collections.unmodifiableList(latencies);
+
+        long[][] nodes = new long[shards.size() * virtualNodes][];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                nodes[shard * virtualNodes + node] = new long[]{hash("shard-" + shard + "#" + node), shard};
+            }
+        }
+        Arrays.sort(nodes, (left, right) -> Long.compare(left[0], right[0]));
+        this.ring = new long[nodes.length];
+        this.owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            this.ring[i] = nodes[i][0];
+            this.owners[i] = (int) nodes[i][1];
+        }
+    }
+
+    // FNV-1a then the MurmurHash3 finalizer, the ring needs the bits well mixed
+    private static long hash(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ hash >>> 33;
+    }
+
+    // an INT key may come back as a Long, integral keys must land on the same shard whatever their type
+    private static String keyOf(Object key)
+    {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte || key instanceof BigInteger) {
+            return String.valueOf(((Number) key).longValue());
+        }
+        return String.valueOf(key);
+    }
+
+    public int shardOf(Object key)
+    {
+        if (key == null) {
+            throw new IllegalArgumentException("A shard key cannot be null.");
+        }
+        int index = Arrays.binarySearch(this.ring, hash(keyOf(key)));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return this.owners[index == this.ring.length ? 0 : index];
+    }
+
+    public Database<Connection, ResultSet> getShard(Object key)
+    {
+        return this.shards.get(this.shardOf(key));
+    }
+
+    public List<Database<Connection, ResultSet>> getShards()
+    {
+        return this.shards;
+    }
+
+    // time taken by each shard to answer its part of the reads run on every shard
+    public LatencyHistogram getShardLatency(int shard)
+    {
+        return this.latencies.get(shard);
+    }
+
+    // there is no single connection, the one of a shard is given by getShard(key).get()
+    @Override
+    public Connection get()
+    {
+        throw new UnsupportedOperationException("A sharded database has no single connection, use getShard(key).get().");
+    }
+
+    @Override
+    public Logger getLogger()
+    {
+        return this.shards.get(0).getLogger();
+    }
+
+    @Override
+    public Database<Connection, ResultSet> connect() throws Exception
+    {
+        for (Database<Connection, ResultSet> shard : this.shards) {
+            shard.connect();
+        }
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> reconnect() throws Exception
+    {
+        for (Database<Connection, ResultSet> shard : this.shards) {
+            shard.reconnect();
+        }
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> disconnect() throws Exception
+    {
+        synchronized (this) {
+            if (this.executor != null) {
+                this.executor.shutdown();
+                this.executor = null;
+            }
+        }
+        Exception failure = null;
+        for (Database<Connection, ResultSet> shard : this.shards) {
+            try {
+                shard.disconnect();
+            } catch (Exception exception) {
+                if (failure == null) {
+                    failure = exception;
+                } else {
+                    failure.addSuppressed(exception);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return this;
+    }
+
+    @Override
+    public <E> Query<E> query(String table)
+    {
+        return this.query(table, null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E> Query<E> query(String table, String alias)
+    {
+        return (Query<E>) new QueryImpl(this, table + (alias != null ? " AS " + alias : ""));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E> Query<E> query(Query<?> query, String alias)
+    {
+        if (alias == null) {
+            throw new IllegalArgumentException("Alias is mandatory for nested queries.");
+        }
+        return (Query<E>) new QueryImpl(this, "(" + query.toString() + ") AS " + alias, query.getTables());
+    }
+
+    @Override
+    public ResultSet getResults(Query<?> query, Object... params) throws Exception
+    {
+        if (!(query instanceof QueryImpl)) {
+            return this.scatter(String.valueOf(query), Collections.emptyList(), Collections.emptyList(), 0, -1, params);
+        }
+        QueryImpl impl = (QueryImpl) query;
+        return this.scatter(impl.buildForShards(), impl.getOrderColumns(), impl.getOrderDirections(),
+            impl.getLimit() < 0 ? 0 : impl.getOffset(), impl.getLimit(), params);
+    }
+
+    // the rows of every shard one after the other, the SQL is not known to be ordered
+    @Override
+    public ResultSet getResults(String query, Object... params) throws Exception
+    {
+        return this.scatter(query, Collections.emptyList(), Collections.emptyList(), 0, -1, params);
+    }
+
+    @Override
+    public ResultSet getResults(CompiledQuery query, Object... params) throws Exception
+    {
+        return this.getResults(query.getSql(), params);
+    }
+
+    ResultSet scatter(String sql, List<String> orderColumns, List<Query.Order> orderDirections, int offset, int limit,
+                      Object... params) throws Exception
+    {
+        List<DetachedResultSet> parts = this.onEveryShard((shard, database) -> {
+            long start = System.nanoTime();
+            ResultSet resultSet = database.getResults(sql, params);
+            try {
+                return DetachedResultSet.capture(resultSet);
+            } finally {
+                database.close(resultSet);
+                this.latencies.get(shard).record(System.nanoTime() - start);
+            }
+        });
+        String[] labels = new String[orderColumns.size()];
+        boolean[] descending = new boolean[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = QueryImpl.label(orderColumns.get(i));
+            descending[i] = orderDirections.get(i) == Query.Order.DESC;
+        }
+        try {
+            return DetachedResultSet.merge(parts, labels, descending, offset, limit).open();
+        } catch (SQLException sqlException) {
+            throw new SQLException("Cannot merge the rows of the shards, every ORDER BY column must be selected.", sqlException);
+        }
+    }
+
+    // the rows are already in memory once merged
+    @Override
+    public <E> Stream<E> stream(Query<?> query, ResultMapper<E> mapper, Object... params) throws Exception
+    {
+        return this.stream(this.getResults(query, params), mapper);
+    }
+
+    @Override
+    public <E> Stream<E> stream(CompiledQuery query, ResultMapper<E> mapper, Object... params) throws Exception
+    {
+        return this.stream(this.getResults(query, params), mapper);
+    }
+
+    private <E> Stream<E> stream(ResultSet resultSet, ResultMapper<E> mapper) throws Exception
+    {
+        List<E> list = new ArrayList<>();
+        try {
+            while (resultSet.next()) {
+                list.add(mapper.map(resultSet));
+            }
+        } catch (Exception exception) {
+            throw exception;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        } finally {
+            resultSet.close();
+        }
+        return list.stream();
+    }
+
+    @Override
+    public void execute(Query<?> query, Object... params) throws Exception
+    {
+        checkNotInsert(String.valueOf(query));
+        this.onEveryShard((shard, database) -> {
+            database.execute(query, params);
+            return null;
+        });
+    }
+
+    @Override
+    public void execute(CompiledQuery query, Object... params) throws Exception
+    {
+        checkNotInsert(query.getSql());
+        this.onEveryShard((shard, database) -> {
+            database.execute(query, params);
+            return null;
+        });
+    }
+
+    @Override
+    public List<Object> executeAndGetKeys(Query<?> query, Object... params) throws Exception
+    {
+        checkNotInsert(String.valueOf(query));
+        return concat(this.onEveryShard((shard, database) -> database.executeAndGetKeys(query, params)));
+    }
+
+    @Override
+    public List<Object> executeAndGetKeys(CompiledQuery query, Object... params) throws Exception
+    {
+        checkNotInsert(query.getSql());
+        return concat(this.onEveryShard((shard, database) -> database.executeAndGetKeys(query, params)));
+    }
+
+    @Override
+    public void executeBatch(Query<?> query, List<Object[]> params) throws Exception
+    {
+        checkNotInsert(String.valueOf(query));
+        this.onEveryShard((shard, database) -> {
+            database.executeBatch(query, params);
+            return null;
+        });
+    }
+
+    @Override
+    public void executeBatch(CompiledQuery query, List<Object[]> params) throws Exception
+    {
+        checkNotInsert(query.getSql());
+        this.onEveryShard((shard, database) -> {
+            database.executeBatch(query, params);
+            return null;
+        });
+    }
+
+    // the same row written on every shard would be read back once per shard
+    private static void checkNotInsert(String sql)
+    {
+        String statement = sql.trim();
+        if (statement.regionMatches(true, 0, "INSERT", 0, 6) || statement.regionMatches(true, 0, "REPLACE", 0, 7)) {
+            throw new IllegalArgumentException("An INSERT must go to the shard of its key, use getShard(key).");
+        }
+    }
+
+    private static List<Object> concat(List<List<Object>> lists)
+    {
+        List<Object> list = new ArrayList<>();
+        for (List<Object> keys : lists) {
+            list.addAll(keys);
+        }
+        return list;
+    }
+
+    // the merged results hold no connection, those of a shard are closed through it
+    @Override
+    public Database<Connection, ResultSet> close(ResultSet result) throws Exception
+    {
+        result.close();
+        return this;
+    }
+
+    @Override
+    public <V> CompletableFuture<V> supplyAsync(Callable<V> task)
+    {
+        return this.shards.get(0).supplyAsync(task);
+    }
+
+    @Override
+    public <V> V inTransaction(Callable<V> callback) throws Exception
+    {
+        return this.inTransaction(Isolation.DEFAULT, false, callback);
+    }
+
+    @Override
+    public <V> V inTransaction(Isolation isolation, boolean readOnly, Callable<V> callback) throws Exception
+    {
+        this.begin(isolation, readOnly);
+        V value;
+        try {
+            value = callback.call();
+        } catch (Throwable throwable) {
+            try {
+                this.rollback();
+            } catch (Exception exception) {
+                throwable.addSuppressed(exception);
+            }
+            throw throwable;
+        }
+        this.commit();
+        return value;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> begin() throws Exception
+    {
+        return this.begin(Isolation.DEFAULT, false);
+    }
+
+    @Override
+    public Database<Connection, ResultSet> begin(Isolation isolation, boolean readOnly) throws Exception
+    {
+        int started = 0;
+        try {
+            for (Database<Connection, ResultSet> shard : this.shards) {
+                shard.begin(isolation, readOnly);
+                started++;
+            }
+        } catch (Exception exception) {
+            for (int i = 0; i < started; i++) {
+                try {
+                    this.shards.get(i).rollback();
+                } catch (Exception rollback) {
+                    exception.addSuppressed(rollback);
+                }
+            }
+            throw exception;
+        }
+        return this;
+    }
+
+    @Override
+    public Database<Connection, ResultSet> commit() throws Exception
+    {
+        return this.end(true);
+    }
+
+    @Override
+    public Database<Connection, ResultSet> rollback() throws Exception
+    {
+        return this.end(false);
+    }
+
+    // every shard is ended even when one of them fails
+    private Database<Connection, ResultSet> end(boolean commit) throws Exception
+    {
+        Exception failure = null;
+        for (Database<Connection, ResultSet> shard : this.shards) {
+            try {
+                if (commit && failure == null) {
+                    shard.commit();
+                } else {
+                    shard.rollback();
+                }
+            } catch (Exception exception) {
+                if (failure == null) {
+                    failure = exception;
+                } else {
+                    failure.addSuppressed(exception);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isInTransaction()
+    {
+        return this.shards.get(0).isInTransaction();
+    }
+
+    // the shards are asked in parallel, but by the calling thread in a transaction since it holds their connections
+    private <V> List<V> onEveryShard(ShardTask<V> task) throws Exception
+    {
+        int size = this.shards.size();
+        List<V> results = new ArrayList<>(size);
+        if (size == 1 || this.isInTransaction()) {
+            for (int i = 0; i < size; i++) {
+                results.add(task.run(i, this.shards.get(i)));
+            }
+            return results;
+        }
+        ExecutorService executor = this.executor();
+        List<Future<V>> futures = new ArrayList<>(size);
+        for (int i = 1; i < size; i++) {
+            int shard = i;
+            futures.add(executor.submit(() -> task.run(shard, this.shards.get(shard))));
+        }
+        try {
+            results.add(task.run(0, this.shards.get(0)));
+            for (Future<V> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            throw cause instanceof Exception ? (Exception) cause : exception;
+        } finally {
+            for (Future<V> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    private ExecutorService executor()
+    {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            synchronized (this) {
+                if ((executor = this.executor) == null) {
+                    this.executor = executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "database-shard-" + THREADS.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    @FunctionalInterface
+    private interface ShardTask<V>
+    {
+        V run(int shard, Database<Connection, ResultSet> database) throws Exception;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.util.Arrays;
+
+// one sample of the slow query log, its plan is filled in once the EXPLAIN has run
+public final class SlowQuery
+{
+    private final String sql;
+    private final Object[] params;
+    private final long durationNanos;
+    private final long timestamp;
+    private final String thread;
+    private volatile String plan;
+
+    SlowQuery(String sql, Object[] params, long durationNanos)
+    {
+        this.sql = sql;
+        this.params = params;
+        this.durationNanos = durationNanos;
+        this.timestamp = System.currentTimeMillis();
+        this.thread = Thread.currentThread().getName();
+    }
+
+    public String getSql()
+    {
+        return this.sql;
+    }
+
+    // as given by the redaction hook
+    public Object[] getParams()
+    {
+        return this.params.clone();
+    }
+
+    public long getDurationNanos()
+    {
+        return this.durationNanos;
+    }
+
+    public long getTimestamp()
+    {
+        return this.timestamp;
+    }
+
+    public String getThread()
+    {
+        return this.thread;
+    }
+
+    // the EXPLAIN FORMAT=JSON output, null until captured or when the statement cannot be explained
+    public String getPlan()
+    {
+        return this.plan;
+    }
+
+    void setPlan(String plan)
+    {
+        this.plan = plan;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SlowQuery{" + (this.durationNanos / 1_000_000) + "ms, sql=" + this.sql
+            + ", params=" + Arrays.toString(this.params) + ", thread=" + this.thread + "}";
+    }
+}
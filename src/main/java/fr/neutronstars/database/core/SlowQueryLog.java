@@ -0,0 +1,223 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Keeps the last samples of the statements slower than the threshold in a ring buffer and logs them. Each
+ * one is explained in the background on a connection of its own, opened for that purpose, so the pool and
+ * the transaction of the caller are left alone. When the explain queue is full the plan is skipped.
+ */
+public final class SlowQueryLog
+{
+    private static final int EXPLAIN_QUEUE = 16;
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    // rewrites the parameters before they are logged or kept, to hide passwords or personal data
+    @FunctionalInterface
+    public interface Redactor
+    {
+        Object[] redact(String sql, Object[] params);
+    }
+
+    private final long threshold;
+    private final Redactor redactor;
+    private final ConnectionPool.Factory factory;
+    private final Logger logger;
+    private final SlowQuery[] samples;
+    private volatile Explainer explainer;
+    private long recorded;
+
+    SlowQueryLog(DatabaseSettings settings, ConnectionPool.Factory factory, Logger logger)
+    {
+        this.threshold = settings.getSlowQueryThreshold();
+        this.redactor = settings.getSlowQueryRedactor();
+        this.factory = factory;
+        this.logger = logger;
+        this.samples = new SlowQuery[settings.getSlowQueryLogSize()];
+        this.explainer = new Explainer();
+    }
+
+    void check(String sql, Object[] params, long nanos)
+    {
+        if (nanos < this.threshold) {
+            return;
+        }
+        Object[] redacted = this.redactor != null ? this.redactor.redact(sql, params.clone()) : params.clone();
+        SlowQuery sample = new SlowQuery(sql, redacted, nanos);
+        synchronized (this.samples) {
+            this.samples[(int) (this.recorded++ % this.samples.length)] = sample;
+        }
+        this.logger.log(Level.WARNING, "Slow query (" + (nanos / 1_000_000) + " ms) : " + sql
+            + " " + Arrays.toString(redacted));
+        if (explainable(sql)) {
+            this.explainer.submit(sample, params);
+        }
+    }
+
+    // EXPLAIN only accepts the data manipulation statements
+    private static boolean explainable(String sql)
+    {
+        String statement = sql.trim();
+        int end = 0;
+        while (end < statement.length() && Character.isLetter(statement.charAt(end))) {
+            end++;
+        }
+        switch (statement.substring(0, end).toUpperCase()) {
+            case "SELECT":
+            case "INSERT":
+            case "UPDATE":
+            case "DELETE":
+            case "REPLACE":
+            case "WITH":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // oldest first
+    public List<SlowQuery> getSamples()
+    {
+        synchronized (this.samples) {
+            int size = (int) Math.min(this.recorded, this.samples.length);
+            List<SlowQuery> samples = new ArrayList<>(size);
+            for (long i = this.recorded - size; i < this.recorded; i++) {
+                samples.add(this.samples[(int) (i % this.samples.length)]);
+            }
+            return samples;
+        }
+    }
+
+    // every sample with its plan, one after the other
+    public String dump()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (SlowQuery sample : this.getSamples()) {
+            builder.append(sample).append(System.lineSeparator());
+            if (sample.getPlan() != null) {
+                builder.append(sample.getPlan()).append(System.lineSeparator());
+            }
+        }
+        return builder.toString();
+    }
+
+    public void clear()
+    {
+        synchronized (this.samples) {
+            Arrays.fill(this.samples, null);
+            this.recorded = 0;
+        }
+    }
+
+    public long getThresholdNanos()
+    {
+        return this.threshold;
+    }
+
+    // the explain connection follows the database, the next explainer opens its own one when needed
+    void close()
+    {
+        Explainer explainer = this.explainer;
+        this.explainer = new Explainer();
+        explainer.close();
+    }
+
+    // an explain thread with its connection, the connection is only used by that thread until it is closed
+    private final class Explainer
+    {
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(EXPLAIN_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "database-explain");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy()
+        );
+        private Connection connection;
+
+        private Explainer()
+        {
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        private void submit(SlowQuery sample, Object[] params)
+        {
+            this.executor.execute(() -> this.explain(sample, params));
+        }
+
+        // runs on the explain thread only
+        private void explain(SlowQuery sample, Object[] params)
+        {
+            try {
+                if (this.connection == null || this.connection.isClosed()) {
+                    this.connection = SlowQueryLog.this.factory.open();
+                }
+                try (PreparedStatement statement = this.connection.prepareStatement("EXPLAIN FORMAT=JSON " + sample.getSql())) {
+                    for (int i = 0; i < params.length; i++) {
+                        statement.setObject(i + 1, params[i]);
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (resultSet.next()) {
+                            sample.setPlan(resultSet.getString(1));
+                        }
+                    }
+                }
+            } catch (SQLException sqlException) {
+                SlowQueryLog.this.logger.log(Level.FINE, "Cannot explain " + sample.getSql() + " : " + sqlException.getMessage());
+                this.closeConnection();
+            }
+        }
+
+        private void closeConnection()
+        {
+            if (this.connection == null) {
+                return;
+            }
+            try {
+                this.connection.close();
+            } catch (SQLException ignored) {
+                // already broken
+            }
+            this.connection = null;
+        }
+
+        // drops the queued explains and closes the connection once the thread is done with it
+        private void close()
+        {
+            this.executor.shutdownNow();
+            try {
+                if (!this.executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    SlowQueryLog.this.logger.log(Level.FINE, "The explain thread is still running, closing its connection.");
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            this.closeConnection();
+        }
+    }
+}
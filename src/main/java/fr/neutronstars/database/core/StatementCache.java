@@ -0,0 +1,113 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU of the prepared statements of a single connection, keyed by their SQL text
+final class StatementCache
+{
+    private final int capacity;
+    private final StatementCacheStatistics statistics;
+    private final LinkedHashMap<String, Slot> statements;
+
+    StatementCache(int capacity, StatementCacheStatistics statistics)
+    {
+        this.capacity = capacity;
+        this.statistics = statistics;
+        this.statements = new LinkedHashMap<String, Slot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest)
+            {
+                if (this.size() <= StatementCache.this.capacity) {
+                    return false;
+                }
+                StatementCache.this.statistics.eviction();
+                // a statement still reading a result set is closed when it is released
+                if (!eldest.getValue().inUse) {
+                    closeQuietly(eldest.getValue().statement);
+                }
+                return true;
+            }
+        };
+    }
+
+    synchronized PreparedStatement prepare(Connection connection, String query) throws SQLException
+    {
+        return this.prepare(connection, query, Statement.NO_GENERATED_KEYS);
+    }
+
+    synchronized PreparedStatement prepare(Connection connection, String query, int autoGeneratedKeys) throws SQLException
+    {
+        Slot slot = this.statements.get(query);
+        if (slot != null && !slot.inUse && slot.autoGeneratedKeys == autoGeneratedKeys) {
+            slot.inUse = true;
+            this.statistics.hit();
+            return slot.statement;
+        }
+        this.statistics.miss();
+        PreparedStatement statement = connection.prepareStatement(query, autoGeneratedKeys);
+        if (slot == null && this.capacity > 0) {
+            this.statements.put(query, new Slot(statement, autoGeneratedKeys));
+        }
+        return statement;
+    }
+
+    synchronized void release(String query, PreparedStatement statement) throws SQLException
+    {
+        Slot slot = this.statements.get(query);
+        if (slot != null && slot.statement == statement) {
+            slot.inUse = false;
+            statement.clearParameters();
+            return;
+        }
+        statement.close();
+    }
+
+    synchronized void clear()
+    {
+        for (Slot slot : this.statements.values()) {
+            closeQuietly(slot.statement);
+        }
+        this.statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement)
+    {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static final class Slot
+    {
+        private final PreparedStatement statement;
+        private final int autoGeneratedKeys;
+        private boolean inUse = true;
+
+        private Slot(PreparedStatement statement, int autoGeneratedKeys)
+        {
+            this.statement = statement;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+    }
+}
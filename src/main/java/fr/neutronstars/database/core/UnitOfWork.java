@@ -0,0 +1,235 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.Lazy;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/*
+ * Keeps a snapshot of the column values of every entity loaded through it. flush() compares the entities
+ * with their snapshot and only writes what changed: clean entities are skipped and each dirty one gets an
+ * UPDATE of its changed columns, batched with the others changing the same columns. Entities given to
+ * persist(T) which were not loaded here go through AbstractRepository#persistAll.
+ *
+ * Not thread safe, a unit of work belongs to one thread at a time.
+ */
+public final class UnitOfWork<T> implements AutoCloseable
+{
+    private final AbstractRepository<T> repository;
+    private final EntityMetadata<T> metadata;
+    private final Map<T, Object[]> snapshots = new IdentityHashMap<>();
+    private final Map<T, Boolean> pending = new IdentityHashMap<>();
+
+    UnitOfWork(AbstractRepository<T> repository, EntityMetadata<T> metadata)
+    {
+        this.repository = repository;
+        this.metadata = metadata;
+    }
+
+    public Optional<T> find(Object identifier) throws Exception
+    {
+        return this.track(this.repository.find(identifier));
+    }
+
+    public Optional<T> find(String column, Object identifier) throws Exception
+    {
+        return this.track(this.repository.find(column, identifier));
+    }
+
+    public List<T> findAll() throws Exception
+    {
+        List<T> list = this.repository.findAll();
+        for (T type : list) {
+            this.track(type);
+        }
+        return list;
+    }
+
+    private Optional<T> track(Optional<T> found)
+    {
+        found.ifPresent(this::track);
+        return found;
+    }
+
+    // an entity loaded elsewhere, its current values are taken as the ones stored
+    public T track(T type)
+    {
+        this.snapshots.put(type, snapshot(type, this.metadata.getColumns()));
+        return type;
+    }
+
+    // written by the next flush, tracked entities are always checked and do not need it
+    public void persist(T type)
+    {
+        if (!this.snapshots.containsKey(type)) {
+            this.pending.put(type, Boolean.TRUE);
+        }
+    }
+
+    public boolean isDirty(T type)
+    {
+        if (this.pending.containsKey(type)) {
+            return true;
+        }
+        Object[] snapshot = this.snapshots.get(type);
+        return snapshot != null && !this.changedColumns(type, snapshot).isEmpty();
+    }
+
+    public void flush() throws Exception
+    {
+        List<T> inserted = new ArrayList<>(this.pending.keySet());
+        if (!inserted.isEmpty()) {
+            this.repository.persistAll(inserted);
+        }
+
+        // one batch per shard and set of changed columns, they share the same statement
+        List<EntityMetadata.ColumnMetadata> columns = this.metadata.getColumns();
+        List<EntityMetadata.ColumnMetadata> primaryKeys = this.metadata.getPrimaryKeys();
+        List<T> updated = new ArrayList<>();
+        Map<Database<Connection, ResultSet>, Map<BitSet, List<Object[]>>> shards = new LinkedHashMap<>();
+        for (Map.Entry<T, Object[]> entry : this.snapshots.entrySet()) {
+            BitSet changed = this.changedColumns(entry.getKey(), entry.getValue());
+            if (changed.isEmpty()) {
+                continue;
+            }
+            if (primaryKeys.isEmpty()) {
+                throw new IllegalStateException("No primary key declared on " + this.metadata.getType().getName() + " class !");
+            }
+            Object[] values = new Object[changed.cardinality() + primaryKeys.size()];
+            int i = 0;
+            for (int index = changed.nextSetBit(0); index >= 0; index = changed.nextSetBit(index + 1)) {
+                values[i++] = get(columns.get(index), entry.getKey());
+            }
+            // the row is found by the keys it was loaded with
+            for (EntityMetadata.ColumnMetadata key : primaryKeys) {
+                values[i++] = entry.getValue()[key.getIndex()];
+            }
+            // the row is still on the shard it was loaded from
+            shards.computeIfAbsent(this.repository.getDatabase(entry.getValue()), ignored -> new LinkedHashMap<>())
+                .computeIfAbsent(changed, ignored -> new ArrayList<>())
+                .add(values);
+            updated.add(entry.getKey());
+        }
+        int batchSize = this.repository.getBatchSize();
+        String table = this.repository.getTableName();
+        for (Map.Entry<Database<Connection, ResultSet>, Map<BitSet, List<Object[]>>> shard : shards.entrySet()) {
+            for (Map.Entry<BitSet, List<Object[]>> batch : shard.getValue().entrySet()) {
+                String assignments = assignments(columns, batch.getKey());
+                List<Object[]> rows = batch.getValue();
+                for (int from = 0; from < rows.size(); from += batchSize) {
+                    shard.getKey().query(table)
+                        .update(assignments)
+                        .where(this.metadata.getPrimaryKeyCondition())
+                        .executeBatch(rows.subList(from, Math.min(from + batchSize, rows.size())));
+                }
+            }
+        }
+
+        this.pending.clear();
+        for (T type : inserted) {
+            this.track(type);
+        }
+        for (T type : updated) {
+            this.track(type);
+            this.repository.refreshCache(type);
+        }
+    }
+
+    // forgets every entity without writing them
+    public void clear()
+    {
+        this.snapshots.clear();
+        this.pending.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        this.clear();
+    }
+
+    private BitSet changedColumns(T type, Object[] snapshot)
+    {
+        BitSet changed = new BitSet();
+        for (EntityMetadata.ColumnMetadata column : this.metadata.getColumns()) {
+            Object before = snapshot[column.getIndex()];
+            Object current = raw(column, type);
+            if (before instanceof Lazy) {
+                // not loaded when tracked, only a set() or another Lazy changes it
+                if (before != current || ((Lazy<?>) before).isModified()) {
+                    changed.set(column.getIndex());
+                }
+            } else if (!Objects.deepEquals(before, current instanceof Lazy ? ((Lazy<?>) current).get() : current)) {
+                changed.set(column.getIndex());
+            }
+        }
+        return changed;
+    }
+
+    private static String assignments(List<EntityMetadata.ColumnMetadata> columns, BitSet changed)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int index = changed.nextSetBit(0); index >= 0; index = changed.nextSetBit(index + 1)) {
+            builder.append(builder.length() == 0 ? "" : ",").append(columns.get(index).getName()).append("=?");
+        }
+        return builder.toString();
+    }
+
+    // arrays and dates can be modified in place, the snapshot keeps its own copy
+    private static Object[] snapshot(Object type, List<EntityMetadata.ColumnMetadata> columns)
+    {
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = raw(columns.get(i), type);
+            // an unloaded column is not read for the snapshot, the Lazy itself is kept
+            if (values[i] instanceof Lazy && ((Lazy<?>) values[i]).isLoaded()) {
+                values[i] = ((Lazy<?>) values[i]).get();
+            }
+            if (values[i] instanceof byte[]) {
+                values[i] = ((byte[]) values[i]).clone();
+            } else if (values[i] instanceof java.util.Date) {
+                values[i] = ((java.util.Date) values[i]).clone();
+            }
+        }
+        return values;
+    }
+
+    private static Object get(EntityMetadata.ColumnMetadata column, Object type)
+    {
+        Object value = raw(column, type);
+        return value instanceof Lazy ? ((Lazy<?>) value).get() : value;
+    }
+
+    private static Object raw(EntityMetadata.ColumnMetadata column, Object type)
+    {
+        try {
+            return column.get(type);
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable.getMessage(), throwable);
+        }
+    }
+}
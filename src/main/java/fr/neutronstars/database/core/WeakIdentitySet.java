@@ -0,0 +1,81 @@
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.neutronstars.database.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// objects compared by identity whatever their equals, forgotten once nothing else references them
+final class WeakIdentitySet<E>
+{
+    private final Set<Key> keys = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    void add(E element)
+    {
+        this.expunge();
+        this.keys.add(new Key(element, this.queue));
+    }
+
+    boolean contains(E element)
+    {
+        if (this.keys.isEmpty()) {
+            return false;
+        }
+        this.expunge();
+        return this.keys.contains(new Key(element, null));
+    }
+
+    private void expunge()
+    {
+        Object key;
+        while ((key = this.queue.poll()) != null) {
+            this.keys.remove(key);
+        }
+    }
+
+    private static final class Key extends WeakReference<Object>
+    {
+        private final int hash;
+
+        private Key(Object referent, ReferenceQueue<Object> queue)
+        {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Object referent = this.get();
+            return referent != null && referent == ((Key) object).get();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.core.DatabaseImpl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PersistBenchmark
+{
+    public static void main(String[] args)
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        try {
+            Database<Connection, ResultSet> database = DatabaseImpl
+                .create("127.0.0.1", "3307", "test", "root", "")
+                .connect();
+            TestRepository repository = new TestRepository(database);
+
+            // the per-row path is far slower, it only runs on a tenth of the rows
+            long start = System.nanoTime();
+            for (int i = 0; i < rows / 10; i++) {
+                Test test = new Test();
+                test.setName("Player " + i);
+                repository.persist(test);
+            }
+            long perRow = System.nanoTime() - start;
+            System.out.println("persist : " + (rows / 10) * 1_000_000_000L / perRow + " rows/s");
+
+            List<Test> tests = new ArrayList<>(rows);
+            for (int i = 0; i < rows; i++) {
+                Test test = new Test();
+                test.setName("Player " + i);
+                tests.add(test);
+            }
+            start = System.nanoTime();
+            repository.persistAll(tests);
+            long batched = System.nanoTime() - start;
+            System.out.println("persistAll : " + rows * 1_000_000_000L / batched + " rows/s");
+
+            List<Test> all = repository.findAll();
+            all.forEach(test -> test.setName(test.getName() + "*"));
+            start = System.nanoTime();
+            repository.persistAll(all);
+            System.out.println(
+                "persistAll (updates) : " + all.size() * 1_000_000_000L / (System.nanoTime() - start) + " rows/s"
+            );
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.core.DatabaseImpl;
+import fr.neutronstars.database.core.DatabaseSettings;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PoolBenchmark
+{
+    private static final int THREADS = 32;
+    private static final long DURATION = TimeUnit.SECONDS.toMillis(10);
+
+    public static void main(String[] args)
+    {
+        try {
+            for (int size : new int[]{1, 2, 4, 8, 16, 32}) {
+                Database<Connection, ResultSet> database = DatabaseImpl
+                    .create("127.0.0.1", "3307", "test", "root", "", DatabaseSettings.create().pool(size, size))
+                    .connect();
+                System.out.println("pool=" + size + " -> " + run(database) + " queries/s");
+                database.disconnect();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long run(Database<Connection, ResultSet> database) throws InterruptedException
+    {
+        LongAdder counter = new LongAdder();
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        long end = System.currentTimeMillis() + DURATION;
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        // a small server-side wait so the benchmark measures concurrency, not the network
+                        ResultSet resultSet = database.query("test").select("SLEEP(0.001)").limit(1).getResult();
+                        database.close(resultSet);
+                        counter.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        return counter.sum() * 1000 / DURATION;
+    }
+}
@@ -0,0 +1,98 @@
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.core.DatabaseImpl;
+import fr.neutronstars.database.core.DatabaseSettings;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PublisherTest
+{
+    // heap growth allowed while the slow subscriber reads the whole table
+    private static final long MAX_GROWTH = 32L * 1024 * 1024;
+
+    public static void main(String[] args)
+    {
+        try {
+            Database<Connection, ResultSet> database = DatabaseImpl
+                .create("127.0.0.1", "3307", "test", "root", "", DatabaseSettings.create().pool(1, 2))
+                .connect();
+            TestRepository repository = new TestRepository(database);
+
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long baseline = runtime.totalMemory() - runtime.freeMemory();
+            long[] peak = {0};
+            CountDownLatch latch = new CountDownLatch(1);
+
+            repository.publish().subscribe(new Flow.Subscriber<Test>() {
+                private Flow.Subscription subscription;
+                private long count;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription)
+                {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(Test item)
+                {
+                    if (++this.count % 10_000 == 0) {
+                        System.gc();
+                        peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory() - baseline);
+                        System.out.println(this.count + " rows, heap growth " + peak[0] / 1024 + "KB");
+                    }
+                    try {
+                        // a consumer much slower than the database
+                        Thread.sleep(0, 100_000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    this.subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable)
+                {
+                    throwable.printStackTrace();
+                    latch.countDown();
+                }
+
+                @Override
+                public void onComplete()
+                {
+                    System.out.println(this.count + " rows published");
+                    latch.countDown();
+                }
+            });
+            latch.await();
+            database.disconnect();
+
+            if (peak[0] > MAX_GROWTH) {
+                throw new AssertionError("Heap grew by " + peak[0] / 1024 + "KB with a slow subscriber");
+            }
+            System.out.println("OK, heap stayed bounded");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import fr.neutronstars.database.api.Database;
+import fr.neutronstars.database.api.annotation.Column;
+import fr.neutronstars.database.core.DatabaseImpl;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RepositoryBenchmark
+{
+    private static final int ROWS = 10_000;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args)
+    {
+        try {
+            Database<Connection, ResultSet> database = DatabaseImpl
+                .create("127.0.0.1", "3307", "test", "root", "")
+                .connect();
+            TestRepository repository = new TestRepository(database);
+
+            int missing = ROWS - repository.findAll().size();
+            for (int i = 0; i < missing; i++) {
+                Test test = new Test();
+                test.setName("Player " + i);
+                repository.persist(test);
+            }
+
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                ResultSet resultSet = database.query("test").select("*").getResult();
+                List<Test> legacy = new ArrayList<>();
+                while (resultSet.next()) {
+                    legacy.add(buildReflectively(resultSet));
+                }
+                database.close(resultSet);
+                long reflection = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<Test> list = repository.findAll();
+                long metadata = System.nanoTime() - start;
+
+                System.out.println(
+                    "findAll " + list.size() + " rows : reflection " + reflection / 1_000_000 + "ms"
+                        + ", metadata " + metadata / 1_000_000 + "ms"
+                );
+            }
+
+            List<Test> list = repository.findAll();
+            long start = System.nanoTime();
+            for (Test test : list) {
+                repository.persist(test);
+            }
+            System.out.println("persist " + list.size() + " rows : " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // the mapping AbstractRepository used before the entity metadata
+    private static Test buildReflectively(ResultSet resultSet) throws Exception
+    {
+        Test instance = Test.class.getDeclaredConstructor().newInstance();
+        for (Field field : Test.class.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Column.class)) {
+                Column column = field.getAnnotation(Column.class);
+                String name = column.name().isEmpty() ? field.getName() : column.name();
+                field.setAccessible(true);
+                field.set(instance, resultSet.getObject(name));
+            }
+        }
+        return instance;
+    }
+}
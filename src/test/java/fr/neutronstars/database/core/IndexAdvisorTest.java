@@ -0,0 +1,105 @@
+package fr.neutronstars.database.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright 2021 NeutronStars
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// the statement parsing of the index advisor, no database needed
+public class IndexAdvisorTest
+{
+    private static int failures;
+
+    public static void main(String[] args)
+    {
+        tokens("SELECT * FROM `cards` WHERE name = 'it''s' AND level >= ?",
+            "SELECT", "*", "FROM", "cards", "WHERE", "name", "=", "'", "'", "AND", "level", ">=", "?");
+        tokens("SELECT a FROM t WHERE b <=> ? OR c != \"x\\\"y\"",
+            "SELECT", "a", "FROM", "t", "WHERE", "b", "<=>", "?", "OR", "c", "!=", "'");
+
+        parse("SELECT * FROM cards WHERE owner=? AND level>? ORDER BY level DESC LIMIT 10",
+            "cards", "owner", "level");
+        parse("SELECT * FROM cards WHERE owner=?", "cards", "owner");
+        parse("SELECT * FROM `cards` AS c INNER JOIN players AS p ON p.id = c.owner WHERE c.rarity IN (?,?) ORDER BY c.created ASC",
+            "cards", "rarity", "created", "players", "id");
+        parse("SELECT * FROM cards c JOIN decks d ON d.card = c.id AND d.slot > ? WHERE c.owner = ?",
+            "cards", "owner", "decks", "card", "slot");
+        // an OR cannot use a plain index, only the ORDER BY is left
+        parse("SELECT * FROM cards WHERE a=? OR b=? ORDER BY id ASC", "cards", "id");
+        parse("UPDATE cards SET level=? WHERE id=? AND owner=?", "cards", "id", "owner");
+        // a function hides the column
+        parse("DELETE FROM cards WHERE LOWER(name) = ?");
+
+        unknown("SELECT * FROM (SELECT * FROM t) AS x WHERE a=?");
+        unknown("SELECT a FROM t WHERE a=? UNION SELECT a FROM u WHERE a=?");
+        unknown("INSERT INTO cards (id) VALUES (?)");
+        // the lookups of other schemas are not tables of the application
+        unknown("SELECT INDEX_NAME FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?");
+        unknown("SELECT * FROM cards JOIN other.decks ON decks.card = cards.id");
+
+        if (failures > 0) {
+            throw new AssertionError(failures + " check(s) failed");
+        }
+        System.out.println("IndexAdvisor parsing OK");
+    }
+
+    private static void tokens(String sql, String... expected)
+    {
+        check(sql, Arrays.asList(expected), IndexAdvisor.tokenize(sql));
+    }
+
+    // expected holds each table followed by its columns, in the order of the index
+    private static void parse(String sql, String... expected)
+    {
+        Map<String, List<String>> tables = new LinkedHashMap<>();
+        String table = null;
+        for (String name : expected) {
+            if (name.equals("cards") || name.equals("players") || name.equals("decks")) {
+                tables.put(table = name, new ArrayList<>());
+            } else {
+                tables.get(table).add(name);
+            }
+        }
+        Map<String, IndexAdvisor.Access> accesses = IndexAdvisor.parse(sql);
+        Map<String, List<String>> actual = null;
+        if (accesses != null) {
+            actual = new LinkedHashMap<>();
+            for (Map.Entry<String, IndexAdvisor.Access> entry : accesses.entrySet()) {
+                actual.put(entry.getKey(), entry.getValue().columns());
+            }
+        }
+        check(sql, tables, actual);
+    }
+
+    private static void unknown(String sql)
+    {
+        Map<String, IndexAdvisor.Access> accesses = IndexAdvisor.parse(sql);
+        check(sql, Collections.emptyMap(), accesses == null ? Collections.emptyMap() : accesses);
+    }
+
+    private static void check(String sql, Object expected, Object actual)
+    {
+        if (!expected.equals(actual)) {
+            failures++;
+            System.err.println(sql + System.lineSeparator() + "  expected " + expected + " but was " + actual);
+        }
+    }
+}